@@ -0,0 +1,372 @@
+package plugins.tinevez.imglib2icy.bench;
+
+import icy.sequence.VolumetricImage;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.position.FunctionRandomAccessible;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import plugins.tinevez.imglib2icy.ImgLib2IcyFunctions;
+import plugins.tinevez.imglib2icy.PlaneCache;
+import plugins.tinevez.imglib2icy.VirtualSequence;
+import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Headless end-to-end benchmark of the latency a viewer sees when scrubbing
+ * through a {@link VirtualSequence}.
+ * <p>
+ * A synthetic lazy source of configurable size and per-pixel cost is wrapped
+ * with {@link ImgLib2IcyFunctions#wrap(RandomAccessibleInterval, DimensionArrangement)},
+ * then viewer access traces are replayed against it. Each trace runs on a new
+ * sequence, with a cold cache. For each trace, the median and 99th
+ * percentile latency of a frame and the sustained frame rate are reported.
+ * <p>
+ * Arguments are <code>key=value</code> pairs:
+ * <ul>
+ * <li><code>size</code>: the source dimensions, <code>XxYxCxZxT</code>.
+ * Default <code>512x512x1x32x100</code>.
+ * <li><code>cost</code>: the number of arithmetic iterations spent computing
+ * each pixel. Default 0.
+ * <li><code>fps</code>: the target frame rate. The next frame is requested
+ * when its time comes, leaving time for the prefetcher. 0 requests frames as
+ * fast as possible. Default 0.
+ * <li><code>frames</code>: the number of frames of the random trace. Default
+ * 200.
+ * <li><code>traces</code>: comma-separated list among <code>PLAYBACK</code>
+ * (forward T), <code>REVERSE</code> (backward T), <code>ZSWEEP</code> (Z
+ * forth and back), <code>RANDOM</code> (random jumps) and <code>VOLUME</code>
+ * (Z stacks through the volumetric images, T after T). Default all.
+ * <li><code>prefetchDepth</code>, <code>prefetchThreads</code>,
+ * <code>projectionThreads</code>: the settings of the prefetcher and of the
+ * projection engine of the sequences. Default to theirs.
+ * <li><code>cacheMB</code>: the budget of the plane cache of the sequences.
+ * Default to the cache default.
+ * </ul>
+ * Example:
+ *
+ * <pre>
+ * mvn -Pbenchmark package exec:java -Dexec.mainClass=plugins.tinevez.imglib2icy.bench.ScrubbingBenchmark -Dexec.args="cost=50 fps=25"
+ * </pre>
+ */
+public class ScrubbingBenchmark
+{
+
+	public enum Trace
+	{
+		PLAYBACK, REVERSE, ZSWEEP, RANDOM, VOLUME;
+	}
+
+	private final long[] dims;
+
+	private final int cost;
+
+	private final double fps;
+
+	private final int randomFrames;
+
+	private final int prefetchDepth;
+
+	private final int prefetchThreads;
+
+	private final int projectionThreads;
+
+	private final long cacheBudget;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	public ScrubbingBenchmark( final long[] dims, final int cost, final double fps, final int randomFrames, final int prefetchDepth, final int prefetchThreads, final int projectionThreads, final long cacheBudget )
+	{
+		if ( dims.length != 5 )
+			throw new IllegalArgumentException( "The source size must be given as XxYxCxZxT, got " + dims.length + " dimensions." );
+		this.dims = dims;
+		this.cost = cost;
+		this.fps = fps;
+		this.randomFrames = randomFrames;
+		this.prefetchDepth = prefetchDepth;
+		this.prefetchThreads = prefetchThreads;
+		this.projectionThreads = projectionThreads;
+		this.cacheBudget = cacheBudget;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Replays the specified trace on a new sequence and returns the latency of
+	 * each frame, in nanoseconds, together with the total duration.
+	 */
+	public Result run( final Trace trace )
+	{
+		final VirtualSequence sequence = ( VirtualSequence ) ImgLib2IcyFunctions.wrap( createSource(), DimensionArrangement.XYCZT );
+		if ( prefetchDepth >= 0 )
+			sequence.getPrefetcher().setDepth( prefetchDepth );
+		if ( prefetchThreads > 0 )
+			sequence.getPrefetcher().setNumThreads( prefetchThreads );
+		if ( projectionThreads > 0 )
+			sequence.getProjectionEngine().setNumThreads( projectionThreads );
+		if ( cacheBudget > 0 )
+			sequence.getCache().setBudget( cacheBudget );
+
+		try
+		{
+			final int[][] positions = positions( trace );
+			final long[] latencies = new long[ positions.length ];
+			final long period = fps > 0 ? ( long ) ( 1e9 / fps ) : 0;
+			final long start = System.nanoTime();
+			VolumetricImage volume = null;
+			int volumeT = -1;
+			for ( int i = 0; i < positions.length; i++ )
+			{
+				if ( period > 0 )
+					sleepUntil( start + i * period );
+				final int t = positions[ i ][ 0 ];
+				final int z = positions[ i ][ 1 ];
+				final long t0 = System.nanoTime();
+				if ( trace == Trace.VOLUME )
+				{
+					if ( t != volumeT )
+					{
+						volume = sequence.getVolumetricImage( t );
+						volumeT = t;
+					}
+					volume.getImage( z );
+				}
+				else
+				{
+					sequence.getImage( t, z );
+				}
+				latencies[ i ] = System.nanoTime() - t0;
+			}
+			return new Result( trace, latencies, System.nanoTime() - start );
+		}
+		finally
+		{
+			sequence.close();
+		}
+	}
+
+	/**
+	 * The latencies of the frames of one trace.
+	 */
+	public static class Result
+	{
+		private final Trace trace;
+
+		private final long[] sorted;
+
+		private final long duration;
+
+		private Result( final Trace trace, final long[] latencies, final long duration )
+		{
+			this.trace = trace;
+			this.sorted = latencies.clone();
+			Arrays.sort( sorted );
+			this.duration = duration;
+		}
+
+		public Trace getTrace()
+		{
+			return trace;
+		}
+
+		public int getFrames()
+		{
+			return sorted.length;
+		}
+
+		/**
+		 * Returns the specified percentile of the frame latency, in
+		 * milliseconds, using the nearest-rank method.
+		 */
+		public double percentile( final double p )
+		{
+			if ( sorted.length == 0 )
+				return Double.NaN;
+			final int rank = ( int ) Math.ceil( p / 100. * sorted.length );
+			return sorted[ Math.max( 0, Math.min( sorted.length - 1, rank - 1 ) ) ] / 1e6;
+		}
+
+		/**
+		 * Returns the number of frames shown per second over the whole trace.
+		 */
+		public double fps()
+		{
+			return sorted.length / ( duration / 1e9 );
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( Locale.US, "%-10s %8d %10.3f %10.3f %10.3f %10.1f",
+					trace, sorted.length, percentile( 50 ), percentile( 99 ), sorted.length == 0 ? Double.NaN : sorted[ sorted.length - 1 ] / 1e6, fps() );
+		}
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private RandomAccessibleInterval< FloatType > createSource()
+	{
+		final int iterations = cost;
+		final BiConsumer< Localizable, FloatType > function = new BiConsumer< Localizable, FloatType >()
+		{
+			@Override
+			public void accept( final Localizable position, final FloatType value )
+			{
+				float v = ( position.getIntPosition( 0 ) * 31
+						+ position.getIntPosition( 1 ) * 17
+						+ position.getIntPosition( 2 ) * 5
+						+ position.getIntPosition( 3 ) * 7
+						+ position.getIntPosition( 4 ) * 13 ) & 0xff;
+				for ( int i = 0; i < iterations; i++ )
+					v = v * 0.999f + 0.25f;
+				value.set( v );
+			}
+		};
+		final Supplier< FloatType > type = new Supplier< FloatType >()
+		{
+			@Override
+			public FloatType get()
+			{
+				return new FloatType();
+			}
+		};
+		return Views.interval( new FunctionRandomAccessible<>( 5, function, type ), new long[ 5 ], max( dims ) );
+	}
+
+	/**
+	 * Returns the (t, z) positions visited by the specified trace.
+	 */
+	private int[][] positions( final Trace trace )
+	{
+		final int sizeZ = ( int ) dims[ 3 ];
+		final int sizeT = ( int ) dims[ 4 ];
+		final int midZ = sizeZ / 2;
+		switch ( trace )
+		{
+		case PLAYBACK:
+		{
+			final int[][] positions = new int[ sizeT ][];
+			for ( int t = 0; t < sizeT; t++ )
+				positions[ t ] = new int[] { t, midZ };
+			return positions;
+		}
+		case REVERSE:
+		{
+			final int[][] positions = new int[ sizeT ][];
+			for ( int t = 0; t < sizeT; t++ )
+				positions[ t ] = new int[] { sizeT - 1 - t, midZ };
+			return positions;
+		}
+		case ZSWEEP:
+		{
+			final int[][] positions = new int[ 2 * sizeZ ][];
+			for ( int z = 0; z < sizeZ; z++ )
+			{
+				positions[ z ] = new int[] { 0, z };
+				positions[ 2 * sizeZ - 1 - z ] = new int[] { 0, z };
+			}
+			return positions;
+		}
+		case RANDOM:
+		{
+			final Random random = new Random( 1l );
+			final int[][] positions = new int[ randomFrames ][];
+			for ( int i = 0; i < randomFrames; i++ )
+				positions[ i ] = new int[] { random.nextInt( sizeT ), random.nextInt( sizeZ ) };
+			return positions;
+		}
+		case VOLUME:
+		{
+			final int[][] positions = new int[ sizeT * sizeZ ][];
+			for ( int t = 0; t < sizeT; t++ )
+				for ( int z = 0; z < sizeZ; z++ )
+					positions[ t * sizeZ + z ] = new int[] { t, z };
+			return positions;
+		}
+		default:
+			throw new IllegalArgumentException( "Unknown trace: " + trace );
+		}
+	}
+
+	private static long[] max( final long[] dims )
+	{
+		final long[] max = new long[ dims.length ];
+		for ( int d = 0; d < dims.length; d++ )
+			max[ d ] = dims[ d ] - 1;
+		return max;
+	}
+
+	private static void sleepUntil( final long deadline )
+	{
+		long remaining;
+		while ( ( remaining = deadline - System.nanoTime() ) > 0 )
+		{
+			try
+			{
+				Thread.sleep( remaining / 1000000, ( int ) ( remaining % 1000000 ) );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/*
+	 * MAIN
+	 */
+
+	public static void main( final String[] args )
+	{
+		final Map< String, String > options = new HashMap<>();
+		for ( final String arg : args )
+		{
+			final int eq = arg.indexOf( '=' );
+			if ( eq < 0 )
+				throw new IllegalArgumentException( "Arguments must be key=value pairs, got " + arg + "." );
+			options.put( arg.substring( 0, eq ), arg.substring( eq + 1 ) );
+		}
+
+		final String[] sizes = get( options, "size", "512x512x1x32x100" ).split( "x" );
+		final long[] dims = new long[ sizes.length ];
+		for ( int d = 0; d < sizes.length; d++ )
+			dims[ d ] = Long.parseLong( sizes[ d ] );
+		final long cacheMB = Long.parseLong( get( options, "cacheMB", "0" ) );
+		if ( cacheMB > 0 )
+			PlaneCache.setGlobalBudget( Math.max( PlaneCache.getGlobalBudget(), cacheMB * 1024 * 1024 ) );
+
+		final ScrubbingBenchmark benchmark = new ScrubbingBenchmark( dims,
+				Integer.parseInt( get( options, "cost", "0" ) ),
+				Double.parseDouble( get( options, "fps", "0" ) ),
+				Integer.parseInt( get( options, "frames", "200" ) ),
+				Integer.parseInt( get( options, "prefetchDepth", "-1" ) ),
+				Integer.parseInt( get( options, "prefetchThreads", "0" ) ),
+				Integer.parseInt( get( options, "projectionThreads", "0" ) ),
+				cacheMB * 1024 * 1024 );
+
+		System.out.println( "Source " + Arrays.toString( dims ) + ", options " + options );
+		System.out.println( String.format( Locale.US, "%-10s %8s %10s %10s %10s %10s", "trace", "frames", "p50 (ms)", "p99 (ms)", "max (ms)", "fps" ) );
+		for ( final String name : get( options, "traces", "PLAYBACK,REVERSE,ZSWEEP,RANDOM,VOLUME" ).split( "," ) )
+			System.out.println( benchmark.run( Trace.valueOf( name.trim().toUpperCase( Locale.US ) ) ) );
+	}
+
+	private static String get( final Map< String, String > options, final String key, final String defaultValue )
+	{
+		final String value = options.get( key );
+		return value == null ? defaultValue : value;
+	}
+}
@@ -0,0 +1,87 @@
+package plugins.tinevez.imglib2icy.bench;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import net.imglib2.img.Img;
+import plugins.tinevez.imglib2icy.ImgLib2IcySequenceAdapter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ImgLib2IcySequenceAdapter#wrap(Sequence)} for every Icy
+ * data type, when the wrapped image is cached and when it is not.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SequenceAdapterBenchmark
+{
+
+	@Param( { "BYTE", "UBYTE", "SHORT", "USHORT", "INT", "UINT", "LONG", "ULONG", "FLOAT", "DOUBLE" } )
+	public String dataType;
+
+	@Param( { "256" } )
+	public int planeSize;
+
+	@Param( { "2" } )
+	public int sizeC;
+
+	@Param( { "16" } )
+	public int sizeZ;
+
+	@Param( { "16" } )
+	public int sizeT;
+
+	private Sequence sequence;
+
+	@Setup
+	public void setup()
+	{
+		sequence = createSequence( planeSize, sizeC, sizeZ, sizeT, DataType.valueOf( dataType ) );
+	}
+
+	@Benchmark
+	public Img< ? > wrap()
+	{
+		ImgLib2IcySequenceAdapter.invalidate( sequence );
+		return ImgLib2IcySequenceAdapter.wrap( sequence );
+	}
+
+	@Benchmark
+	public Img< ? > wrapCached()
+	{
+		return ImgLib2IcySequenceAdapter.wrap( sequence );
+	}
+
+	static Sequence createSequence( final int planeSize, final int sizeC, final int sizeZ, final int sizeT, final DataType dataType )
+	{
+		final Sequence sequence = new Sequence( "benchmark" );
+		sequence.beginUpdate();
+		try
+		{
+			for ( int t = 0; t < sizeT; t++ )
+				for ( int z = 0; z < sizeZ; z++ )
+					sequence.setImage( t, z, new IcyBufferedImage( planeSize, planeSize, sizeC, dataType ) );
+		}
+		finally
+		{
+			sequence.endUpdate();
+		}
+		return sequence;
+	}
+}
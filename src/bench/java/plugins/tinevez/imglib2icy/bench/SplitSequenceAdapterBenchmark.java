@@ -0,0 +1,76 @@
+package plugins.tinevez.imglib2icy.bench;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import plugins.tinevez.imglib2icy.ImgLib2IcySplitSequenceAdapter;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ImgLib2IcySplitSequenceAdapter} for each combination of
+ * split dimensions, requesting all the outputs.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SplitSequenceAdapterBenchmark
+{
+
+	/**
+	 * The dimensions to split along.
+	 */
+	@Param( { "C", "Z", "T", "CZ", "CT", "ZT", "CZT" } )
+	public String split;
+
+	@Param( { "UBYTE", "FLOAT" } )
+	public String dataType;
+
+	private Sequence sequence;
+
+	private boolean splitC;
+
+	private boolean splitZ;
+
+	private boolean splitT;
+
+	@Setup
+	public void setup()
+	{
+		sequence = SequenceAdapterBenchmark.createSequence( 256, 4, 16, 32, DataType.valueOf( dataType ) );
+		splitC = split.contains( "C" );
+		splitZ = split.contains( "Z" );
+		splitT = split.contains( "T" );
+	}
+
+	@Benchmark
+	public void wrap( final Blackhole bh )
+	{
+		final List< ? > imgs = ImgLib2IcySplitSequenceAdapter.wrap( sequence, splitC, splitZ, splitT );
+		for ( int i = 0; i < imgs.size(); i++ )
+			bh.consume( imgs.get( i ) );
+	}
+
+	@Benchmark
+	public void split( final Blackhole bh )
+	{
+		final List< ? > views = ImgLib2IcySplitSequenceAdapter.split( sequence, splitC, splitZ, splitT );
+		for ( int i = 0; i < views.size(); i++ )
+			bh.consume( views.get( i ) );
+	}
+}
@@ -0,0 +1,165 @@
+package plugins.tinevez.imglib2icy.bench;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.VolumetricImage;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import plugins.tinevez.imglib2icy.PlaneCache;
+import plugins.tinevez.imglib2icy.VirtualSequence;
+import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link VirtualSequence#getImage(int, int)} and the
+ * {@link VolumetricImage#getImage(int)} of its volumetric images, for
+ * several plane sizes, channel counts and kinds of source.
+ * <p>
+ * The positions are visited in turn, and there are more of them than
+ * {@link VirtualSequence#NUM_KEPT_IMAGES}, so that each call builds a new
+ * image. The cold benchmarks clear the plane cache before each call and
+ * measure the projection of the source; the warm ones measure the images
+ * built from cached planes.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( value = 1, jvmArgs = { "-Xmx4g" } )
+public class VirtualSequenceBenchmark
+{
+
+	private static final int SIZE_Z = VirtualSequence.NUM_KEPT_IMAGES + 2;
+
+	/**
+	 * <ul>
+	 * <li>ARRAY: a single {@link net.imglib2.img.array.ArrayImg}.
+	 * <li>PLANAR: a {@link net.imglib2.img.planar.PlanarImg}, whose planes are
+	 * used without copy.
+	 * <li>CELL: a {@link net.imglib2.img.cell.CellImg} with 64x64x1 cells.
+	 * <li>CONVERTED: an unsigned short image converted to float on the fly.
+	 * </ul>
+	 */
+	@Param( { "ARRAY", "PLANAR", "CELL", "CONVERTED" } )
+	public String sourceKind;
+
+	@Param( { "256", "1024", "2048" } )
+	public int planeSize;
+
+	@Param( { "1", "3" } )
+	public int sizeC;
+
+	private VirtualSequence sequence;
+
+	private VolumetricImage volume;
+
+	private int z;
+
+	@Setup
+	public void setup()
+	{
+		final long[] dims = sizeC > 1
+				? new long[] { planeSize, planeSize, sizeC, SIZE_Z }
+				: new long[] { planeSize, planeSize, SIZE_Z };
+		final DimensionArrangement arrangement = sizeC > 1 ? DimensionArrangement.XYCZ : DimensionArrangement.XYZ;
+
+		final RandomAccessibleInterval< FloatType > source;
+		switch ( sourceKind )
+		{
+		case "ARRAY":
+			source = fill( new ArrayImgFactory<>( new FloatType() ).create( dims ) );
+			break;
+		case "PLANAR":
+			source = fill( new PlanarImgFactory<>( new FloatType() ).create( dims ) );
+			break;
+		case "CELL":
+		{
+			final int[] cellDims = new int[ dims.length ];
+			for ( int d = 0; d < dims.length; d++ )
+				cellDims[ d ] = d < 2 ? 64 : 1;
+			source = fill( new CellImgFactory<>( new FloatType(), cellDims ).create( dims ) );
+			break;
+		}
+		case "CONVERTED":
+		{
+			final Img< UnsignedShortType > shorts = new ArrayImgFactory<>( new UnsignedShortType() ).create( dims );
+			final Random random = new Random( 1l );
+			for ( final UnsignedShortType t : shorts )
+				t.set( random.nextInt( 65536 ) );
+			source = Converters.convert( ( RandomAccessibleInterval< UnsignedShortType > ) shorts, new RealFloatConverter< UnsignedShortType >(), new FloatType() );
+			break;
+		}
+		default:
+			throw new IllegalArgumentException( "Unknown source kind: " + sourceKind );
+		}
+
+		// Keep all the planes of the warm benchmarks in memory.
+		PlaneCache.setGlobalBudget( Long.MAX_VALUE );
+		sequence = new VirtualSequence( source, arrangement );
+		sequence.getCache().setBudget( Long.MAX_VALUE );
+		sequence.getPrefetcher().setDepth( 0 );
+		volume = sequence.getVolumetricImage( 0 );
+		for ( int zz = 0; zz < SIZE_Z; zz++ )
+			sequence.getImage( 0, zz );
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		sequence.close();
+	}
+
+	@Benchmark
+	public IcyBufferedImage getImageCold()
+	{
+		sequence.getCache().clear();
+		return sequence.getImage( 0, nextZ() );
+	}
+
+	@Benchmark
+	public IcyBufferedImage getImageWarm()
+	{
+		return sequence.getImage( 0, nextZ() );
+	}
+
+	@Benchmark
+	public IcyBufferedImage volumetricGetImage()
+	{
+		return volume.getImage( nextZ() );
+	}
+
+	private int nextZ()
+	{
+		z = ( z + 1 ) % SIZE_Z;
+		return z;
+	}
+
+	private static Img< FloatType > fill( final Img< FloatType > img )
+	{
+		final Random random = new Random( 1l );
+		for ( final FloatType t : img )
+			t.set( random.nextFloat() );
+		return img;
+	}
+}
@@ -0,0 +1,331 @@
+package plugins.tinevez.imglib2icy;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import plugins.tinevez.imglib2icy.ChunkedImgs.Compression;
+import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a {@link RandomAccessibleInterval} or a {@link Sequence} to disk
+ * block by block, in the chunked format read by {@link ChunkedImgs}.
+ * <p>
+ * The blocks are copied from the source and written in parallel, each on one
+ * thread. Only a few blocks per thread are in flight at any time, so the
+ * memory used does not depend on the size of the source, and sources much
+ * larger than the heap, such as {@link VirtualSequence}s over lazy images, can
+ * be exported without being materialized. Progress is reported after each
+ * block, and the export can be canceled from any thread.
+ */
+public class ChunkedExporter< T extends NativeType< T > & RealType< T > >
+{
+
+	/**
+	 * Interface for the callback notified of the progress of an export. It is
+	 * called on the thread that runs {@link ChunkedExporter#export()}.
+	 */
+	public interface ProgressListener
+	{
+		public void progress( long done, long total );
+	}
+
+	/**
+	 * The default edge length of the blocks along X and Y. Blocks span 1
+	 * along the other dimensions by default.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 256;
+
+	public static final int DEFAULT_NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	private final RandomAccessibleInterval< T > source;
+
+	private final Path dir;
+
+	private final DimensionArrangement arrangement;
+
+	private final DataType dataType;
+
+	private int[] blockSize;
+
+	private Compression compression = Compression.RAW;
+
+	private volatile boolean canceled;
+
+	private int numThreads = DEFAULT_NUM_THREADS;
+
+	private ProgressListener progressListener;
+
+	/*
+	 * CONSTRUCTORS
+	 */
+
+	/**
+	 * Creates an exporter for the specified source.
+	 *
+	 * @param source
+	 *            the source.
+	 * @param arrangement
+	 *            the arrangement of the source dimensions, stored so that the
+	 *            image can be opened again as a sequence. Can be
+	 *            <code>null</code>.
+	 * @param dir
+	 *            the directory to write to. It is created if needed.
+	 */
+	public ChunkedExporter( final RandomAccessibleInterval< T > source, final DimensionArrangement arrangement, final Path dir )
+	{
+		if ( arrangement != null && source.numDimensions() != arrangement.numDimensions() )
+			throw new IllegalArgumentException( "Source does not have the same dimensionality that of the declared dimension arrangment. Expected "
+					+ arrangement.numDimensions() + " but got " + source.numDimensions() + "." );
+		this.dataType = ImgLib2IcyFunctions.getDataType( source.getType() );
+		if ( dataType == null )
+			throw new IllegalArgumentException( "Unsupported type: " + source.getType().getClass().getSimpleName()
+					+ ". Only real types are supported: ARGB sources must be split into channels first, for instance with Converters.argbChannels." );
+		this.source = Views.isZeroMin( source ) ? source : Views.zeroMin( source );
+		this.arrangement = arrangement;
+		this.dir = dir;
+		this.blockSize = new int[ source.numDimensions() ];
+		for ( int d = 0; d < blockSize.length; d++ )
+			blockSize[ d ] = d < 2 ? ( int ) Math.min( DEFAULT_BLOCK_SIZE, source.dimension( d ) ) : 1;
+	}
+
+	/**
+	 * Creates an exporter for the specified sequence. The pixels of regular
+	 * sequences are read from the sequence planes, and the ones of
+	 * {@link VirtualSequence}s from their source, which is never
+	 * materialized. The dirty planes of a {@link VirtualSequence} are
+	 * flushed to its source here, so that the export includes them; planes
+	 * modified after this constructor returns may be exported or not.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public ChunkedExporter( final Sequence sequence, final Path dir )
+	{
+		this( ( RandomAccessibleInterval< T > ) flushedSource( sequence ),
+				sequence instanceof VirtualSequence ? ( ( VirtualSequence ) sequence ).getArrangement() : ImgLib2IcyFunctions.getDimensionArrangement( sequence ),
+				dir );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Writes the attributes, then all the blocks of the source.
+	 *
+	 * @throws IOException
+	 *             if a file cannot be written.
+	 * @throws CancellationException
+	 *             if {@link #cancel()} was called before completion. The
+	 *             blocks written so far are kept.
+	 */
+	public void export() throws IOException
+	{
+		final int n = source.numDimensions();
+		final long[] dims = Intervals.dimensionsAsLongArray( source );
+		final long[] gridSize = new long[ n ];
+		long nBlocks = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			gridSize[ d ] = ( dims[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			nBlocks *= gridSize[ d ];
+		}
+
+		Files.createDirectories( dir );
+		new ChunkedImgs.Attributes( dims, blockSize.clone(), dataType, compression, arrangement ).write( dir );
+
+		final ExecutorService executor = Executors.newFixedThreadPool( numThreads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread( final Runnable r )
+			{
+				final Thread thread = new Thread( r, "Chunked exporter " + THREAD_COUNT.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		final ExecutorCompletionService< Void > completion = new ExecutorCompletionService<>( executor );
+		try
+		{
+			// Keep a bounded number of blocks in flight.
+			final long window = Math.min( nBlocks, 2l * numThreads );
+			long submitted = 0;
+			for ( ; submitted < window; submitted++ )
+				completion.submit( blockTask( submitted, gridSize ) );
+
+			for ( long done = 1; done <= nBlocks; done++ )
+			{
+				completion.take().get();
+				if ( canceled )
+					throw new CancellationException( "Export canceled." );
+				if ( submitted < nBlocks )
+					completion.submit( blockTask( submitted++, gridSize ) );
+				if ( progressListener != null )
+					progressListener.progress( done, nBlocks );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException( "Export interrupted." );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException ) e.getCause();
+			if ( e.getCause() instanceof RuntimeException )
+				throw ( RuntimeException ) e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Requests the export to stop. The blocks being written are completed,
+	 * the others are skipped.
+	 */
+	public void cancel()
+	{
+		canceled = true;
+	}
+
+	public boolean isCanceled()
+	{
+		return canceled;
+	}
+
+	public int[] getBlockSize()
+	{
+		return blockSize.clone();
+	}
+
+	/**
+	 * Sets the size of the blocks. Each block is copied in memory before
+	 * being written, so its number of elements must be less than
+	 * {@link Integer#MAX_VALUE}.
+	 */
+	public void setBlockSize( final int... blockSize )
+	{
+		if ( blockSize.length != source.numDimensions() )
+			throw new IllegalArgumentException( "Expected a block size with " + source.numDimensions() + " dimensions, got " + blockSize.length + "." );
+		for ( final int size : blockSize )
+			if ( size < 1 )
+				throw new IllegalArgumentException( "Block sizes must be at least 1, got " + size + "." );
+		if ( Intervals.numElements( blockSize ) > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Blocks must have less than " + Integer.MAX_VALUE + " elements." );
+		this.blockSize = blockSize.clone();
+	}
+
+	public Compression getCompression()
+	{
+		return compression;
+	}
+
+	public void setCompression( final Compression compression )
+	{
+		this.compression = compression;
+	}
+
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	public void setNumThreads( final int numThreads )
+	{
+		if ( numThreads < 1 )
+			throw new IllegalArgumentException( "The number of export threads must be at least 1, got " + numThreads + "." );
+		this.numThreads = numThreads;
+	}
+
+	public void setProgressListener( final ProgressListener progressListener )
+	{
+		this.progressListener = progressListener;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Returns the image to export for the specified sequence: the source of a
+	 * {@link VirtualSequence}, whatever its kind, after having written its
+	 * dirty planes to it, or the wrapped planes of a regular sequence.
+	 */
+	private static RandomAccessibleInterval< ? > flushedSource( final Sequence sequence )
+	{
+		if ( !( sequence instanceof VirtualSequence ) )
+			return ImgLib2IcySequenceAdapter.wrapSource( sequence );
+
+		final VirtualSequence virtual = ( VirtualSequence ) sequence;
+		virtual.flush();
+		return virtual.getSource();
+	}
+
+	private Callable< Void > blockTask( final long index, final long[] gridSize )
+	{
+		return new Callable< Void >()
+		{
+			@Override
+			public Void call() throws Exception
+			{
+				if ( !canceled )
+					writeBlock( index, gridSize );
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Copies the block with the specified linear index, the dimension 0
+	 * varying fastest, and writes it.
+	 */
+	private void writeBlock( final long index, final long[] gridSize ) throws IOException
+	{
+		final int n = source.numDimensions();
+		final long[] gridPosition = new long[ n ];
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		long remainder = index;
+		for ( int d = 0; d < n; d++ )
+		{
+			gridPosition[ d ] = remainder % gridSize[ d ];
+			remainder /= gridSize[ d ];
+			min[ d ] = gridPosition[ d ] * blockSize[ d ];
+			max[ d ] = Math.min( min[ d ] + blockSize[ d ], source.dimension( d ) ) - 1;
+		}
+
+		final long[] blockDims = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			blockDims[ d ] = max[ d ] - min[ d ] + 1;
+		final ArrayImg< T, ? > block = new ArrayImgFactory<>( source.getType() ).create( blockDims );
+		final Cursor< T > in = Views.flatIterable( Views.interval( source, min, max ) ).cursor();
+		final Cursor< T > out = block.cursor();
+		while ( in.hasNext() )
+			out.next().set( in.next() );
+
+		ChunkedImgs.writeBlock( ChunkedImgs.blockFile( dir, gridPosition ), DirectPlanes.array( block, 0 ), compression );
+	}
+}
@@ -0,0 +1,306 @@
+package plugins.tinevez.imglib2icy;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.cache.img.optional.CacheOptions.CacheType;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads images stored block by block by a {@link ChunkedExporter}.
+ * <p>
+ * A chunked image is a directory with an <code>attributes.properties</code>
+ * file, that gives the dimensions, block size, data type, compression and
+ * optionally the dimension arrangement, and one file per block. The block at
+ * grid position (i, j, k...) is stored in the file <code>i_j_k....blk</code>,
+ * X varying fastest, in big-endian byte order, and deflated if compression is
+ * enabled. Blocks at the image border are truncated. Missing blocks read as
+ * 0.
+ * <p>
+ * Images are opened lazily: blocks are read when first accessed, and kept in
+ * a bounded cache.
+ */
+public final class ChunkedImgs
+{
+
+	/**
+	 * The compression of the blocks.
+	 */
+	public enum Compression
+	{
+		RAW, DEFLATE;
+	}
+
+	public static final String ATTRIBUTES_FILE = "attributes.properties";
+
+	/**
+	 * The default number of bytes of the blocks kept in memory by an opened
+	 * image.
+	 */
+	public static final long DEFAULT_CACHE_BUDGET = 256L * 1024L * 1024L;
+
+	private static final String BLOCK_SUFFIX = ".blk";
+
+	/*
+	 * METHODS
+	 */
+
+	public static < T extends NativeType< T > & RealType< T > > Img< T > open( final Path dir ) throws IOException
+	{
+		return open( dir, DEFAULT_CACHE_BUDGET );
+	}
+
+	/**
+	 * Opens the chunked image stored in the specified directory.
+	 *
+	 * @param dir
+	 *            the directory.
+	 * @param budget
+	 *            the maximal number of bytes of the blocks kept in memory.
+	 *            At least one block is always kept.
+	 * @return a new lazy, read-only image.
+	 * @throws IOException
+	 *             if the attributes cannot be read.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static < T extends NativeType< T > & RealType< T > > Img< T > open( final Path dir, final long budget ) throws IOException
+	{
+		final Attributes attributes = Attributes.read( dir );
+		final long blockBytes = Intervals.numElements( attributes.blockSize ) * attributes.dataType.getSize();
+		final int maxCacheSize = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, budget / Math.max( 1, blockBytes ) ) );
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( attributes.blockSize )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( maxCacheSize );
+
+		final int[] blockSize = attributes.blockSize;
+		final Compression compression = attributes.compression;
+		final CellLoader< T > loader = new CellLoader< T >()
+		{
+			@Override
+			public void load( final SingleCellArrayImg< T, ? > cell ) throws Exception
+			{
+				final long[] gridPosition = new long[ blockSize.length ];
+				for ( int d = 0; d < blockSize.length; d++ )
+					gridPosition[ d ] = cell.min( d ) / blockSize[ d ];
+				final Path file = blockFile( dir, gridPosition );
+				if ( Files.exists( file ) )
+					readBlock( file, cell.getStorageArray(), compression );
+			}
+		};
+
+		final T type = ( T ) ImgLib2IcyFunctions.getType( attributes.dataType );
+		return ( Img ) new ReadOnlyCachedCellImgFactory( options ).create( attributes.dimensions, type, loader );
+	}
+
+	/**
+	 * Opens the chunked image stored in the specified directory in a
+	 * {@link VirtualSequence}, with the dimension arrangement it was exported
+	 * with.
+	 *
+	 * @throws IOException
+	 *             if the attributes cannot be read, or do not give the
+	 *             dimension arrangement.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static Sequence openSequence( final Path dir ) throws IOException
+	{
+		final Attributes attributes = Attributes.read( dir );
+		if ( attributes.arrangement == null )
+			throw new IOException( "The chunked image in " + dir + " does not have a dimension arrangement." );
+		return ImgLib2IcyFunctions.wrap( ( Img ) open( dir ), attributes.arrangement );
+	}
+
+	/*
+	 * PACKAGE METHODS
+	 */
+
+	static Path blockFile( final Path dir, final long[] gridPosition )
+	{
+		final StringBuilder name = new StringBuilder();
+		for ( int d = 0; d < gridPosition.length; d++ )
+		{
+			if ( d > 0 )
+				name.append( '_' );
+			name.append( gridPosition[ d ] );
+		}
+		return dir.resolve( name.append( BLOCK_SUFFIX ).toString() );
+	}
+
+	/**
+	 * Writes the specified primitive array in the specified file, through a
+	 * temporary file so that readers never see a partial block.
+	 */
+	static void writeBlock( final Path file, final Object array, final Compression compression ) throws IOException
+	{
+		final Path tmp = file.resolveSibling( file.getFileName() + ".tmp" );
+		try (final OutputStream out = compression == Compression.DEFLATE
+				? new DeflaterOutputStream( Files.newOutputStream( tmp ) )
+				: Files.newOutputStream( tmp ))
+		{
+			out.write( toBytes( array ) );
+		}
+		Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	/**
+	 * Reads the specified file in the specified primitive array.
+	 */
+	static void readBlock( final Path file, final Object array, final Compression compression ) throws IOException
+	{
+		final byte[] bytes;
+		if ( compression == Compression.DEFLATE )
+		{
+			try (final InputStream in = new InflaterInputStream( Files.newInputStream( file ) ))
+			{
+				final ByteArrayOutputStream out = new ByteArrayOutputStream( ( int ) PlaneCache.sizeOf( array ) );
+				final byte[] chunk = new byte[ 64 * 1024 ];
+				int n;
+				while ( ( n = in.read( chunk ) ) > 0 )
+					out.write( chunk, 0, n );
+				bytes = out.toByteArray();
+			}
+		}
+		else
+		{
+			bytes = Files.readAllBytes( file );
+		}
+		final int length = Array.getLength( array );
+		if ( bytes.length != PlaneCache.sizeOf( array ) )
+			throw new IOException( "Block " + file + " has " + bytes.length + " bytes, expected " + PlaneCache.sizeOf( array ) + "." );
+		ConversionKernels.copy( ByteBuffer.wrap( bytes ), 0, array, 0, length );
+	}
+
+	/**
+	 * Returns the big-endian bytes of the specified primitive array.
+	 */
+	private static byte[] toBytes( final Object array )
+	{
+		if ( array instanceof byte[] )
+			return ( byte[] ) array;
+		final ByteBuffer bytes = ByteBuffer.allocate( ( int ) PlaneCache.sizeOf( array ) );
+		if ( array instanceof short[] )
+			bytes.asShortBuffer().put( ( short[] ) array );
+		else if ( array instanceof int[] )
+			bytes.asIntBuffer().put( ( int[] ) array );
+		else if ( array instanceof long[] )
+			bytes.asLongBuffer().put( ( long[] ) array );
+		else if ( array instanceof float[] )
+			bytes.asFloatBuffer().put( ( float[] ) array );
+		else if ( array instanceof double[] )
+			bytes.asDoubleBuffer().put( ( double[] ) array );
+		else
+			throw new IllegalArgumentException( "Not a primitive numeric array: " + array );
+		return bytes.array();
+	}
+
+	/**
+	 * The content of the attributes file.
+	 */
+	static final class Attributes
+	{
+		final long[] dimensions;
+
+		final int[] blockSize;
+
+		final DataType dataType;
+
+		final Compression compression;
+
+		final DimensionArrangement arrangement;
+
+		Attributes( final long[] dimensions, final int[] blockSize, final DataType dataType, final Compression compression, final DimensionArrangement arrangement )
+		{
+			this.dimensions = dimensions;
+			this.blockSize = blockSize;
+			this.dataType = dataType;
+			this.compression = compression;
+			this.arrangement = arrangement;
+		}
+
+		void write( final Path dir ) throws IOException
+		{
+			final Properties properties = new Properties();
+			final StringBuilder dims = new StringBuilder();
+			final StringBuilder blocks = new StringBuilder();
+			for ( int d = 0; d < dimensions.length; d++ )
+			{
+				if ( d > 0 )
+				{
+					dims.append( ',' );
+					blocks.append( ',' );
+				}
+				dims.append( dimensions[ d ] );
+				blocks.append( blockSize[ d ] );
+			}
+			properties.setProperty( "dimensions", dims.toString() );
+			properties.setProperty( "blockSize", blocks.toString() );
+			properties.setProperty( "dataType", dataType.name() );
+			properties.setProperty( "compression", compression.name() );
+			if ( arrangement != null )
+				properties.setProperty( "arrangement", arrangement.name() );
+			try (final Writer writer = Files.newBufferedWriter( dir.resolve( ATTRIBUTES_FILE ), StandardCharsets.UTF_8 ))
+			{
+				properties.store( writer, "Chunked image" );
+			}
+		}
+
+		static Attributes read( final Path dir ) throws IOException
+		{
+			final Properties properties = new Properties();
+			try (final Reader reader = Files.newBufferedReader( dir.resolve( ATTRIBUTES_FILE ), StandardCharsets.UTF_8 ))
+			{
+				properties.load( reader );
+			}
+			try
+			{
+				final String[] dims = properties.getProperty( "dimensions" ).split( "," );
+				final String[] blocks = properties.getProperty( "blockSize" ).split( "," );
+				if ( dims.length != blocks.length )
+					throw new IOException( "The dimensions and the block size of the chunked image in " + dir + " do not have the same length." );
+				final long[] dimensions = new long[ dims.length ];
+				final int[] blockSize = new int[ blocks.length ];
+				for ( int d = 0; d < dims.length; d++ )
+				{
+					dimensions[ d ] = Long.parseLong( dims[ d ].trim() );
+					blockSize[ d ] = Integer.parseInt( blocks[ d ].trim() );
+				}
+				final String arrangement = properties.getProperty( "arrangement" );
+				return new Attributes( dimensions, blockSize,
+						DataType.valueOf( properties.getProperty( "dataType" ) ),
+						Compression.valueOf( properties.getProperty( "compression", Compression.RAW.name() ) ),
+						arrangement == null ? null : DimensionArrangement.valueOf( arrangement ) );
+			}
+			catch ( final NullPointerException | IllegalArgumentException e )
+			{
+				throw new IOException( "Invalid attributes for the chunked image in " + dir + ".", e );
+			}
+		}
+	}
+
+	private ChunkedImgs()
+	{}
+}
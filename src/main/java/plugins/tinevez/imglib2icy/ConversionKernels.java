@@ -0,0 +1,248 @@
+package plugins.tinevez.imglib2icy;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Bulk conversion kernels between primitive arrays.
+ * <p>
+ * The loops are kept simple, counted and branch-free so that the JIT compiler
+ * can unroll and vectorize them. Up to floating point rounding, their results
+ * are the same as the ones of the corresponding ImgLib2 converters.
+ */
+public final class ConversionKernels
+{
+
+	/**
+	 * Interface for kernels that convert a range of a primitive array into a
+	 * range of another primitive array.
+	 */
+	public interface Kernel
+	{
+		public void convert( Object src, int srcPos, Object dst, int dstPos, int length );
+	}
+
+	/**
+	 * Copies between arrays of the same primitive type.
+	 */
+	public static final Kernel COPY = new Kernel()
+	{
+		@Override
+		public void convert( final Object src, final int srcPos, final Object dst, final int dstPos, final int length )
+		{
+			System.arraycopy( src, srcPos, dst, dstPos, length );
+		}
+	};
+
+	/**
+	 * Copies from an NIO buffer to an array of the same primitive type. See
+	 * {@link #copy(Buffer, int, Object, int, int)}.
+	 */
+	public static final Kernel BUFFER_COPY = new Kernel()
+	{
+		@Override
+		public void convert( final Object src, final int srcPos, final Object dst, final int dstPos, final int length )
+		{
+			copy( ( Buffer ) src, srcPos, dst, dstPos, length );
+		}
+	};
+
+	/**
+	 * Copies elements of an NIO buffer in bulk into a primitive array. The
+	 * buffer is either of the primitive type of the array, or a
+	 * {@link ByteBuffer} read with its byte order. Positions are in elements
+	 * of the array type. The position of the buffer is not modified, so that
+	 * several threads can copy from the same buffer.
+	 */
+	public static void copy( final Buffer src, final int srcPos, final Object dst, final int dstPos, final int length )
+	{
+		if ( src instanceof ByteBuffer )
+		{
+			final ByteBuffer bytes = ( ( ByteBuffer ) src ).duplicate().order( ( ( ByteBuffer ) src ).order() );
+			bytes.clear();
+			if ( dst instanceof byte[] )
+			{
+				bytes.position( srcPos );
+				bytes.get( ( byte[] ) dst, dstPos, length );
+				return;
+			}
+			if ( dst instanceof short[] )
+				copy( bytes.asShortBuffer(), srcPos, dst, dstPos, length );
+			else if ( dst instanceof int[] )
+				copy( bytes.asIntBuffer(), srcPos, dst, dstPos, length );
+			else if ( dst instanceof long[] )
+				copy( bytes.asLongBuffer(), srcPos, dst, dstPos, length );
+			else if ( dst instanceof float[] )
+				copy( bytes.asFloatBuffer(), srcPos, dst, dstPos, length );
+			else if ( dst instanceof double[] )
+				copy( bytes.asDoubleBuffer(), srcPos, dst, dstPos, length );
+			else
+				throw new IllegalArgumentException( "Not a primitive numeric array: " + dst );
+			return;
+		}
+
+		if ( src instanceof ShortBuffer )
+		{
+			final ShortBuffer buffer = ( ( ShortBuffer ) src ).duplicate();
+			buffer.clear();
+			buffer.position( srcPos );
+			buffer.get( ( short[] ) dst, dstPos, length );
+		}
+		else if ( src instanceof IntBuffer )
+		{
+			final IntBuffer buffer = ( ( IntBuffer ) src ).duplicate();
+			buffer.clear();
+			buffer.position( srcPos );
+			buffer.get( ( int[] ) dst, dstPos, length );
+		}
+		else if ( src instanceof LongBuffer )
+		{
+			final LongBuffer buffer = ( ( LongBuffer ) src ).duplicate();
+			buffer.clear();
+			buffer.position( srcPos );
+			buffer.get( ( long[] ) dst, dstPos, length );
+		}
+		else if ( src instanceof FloatBuffer )
+		{
+			final FloatBuffer buffer = ( ( FloatBuffer ) src ).duplicate();
+			buffer.clear();
+			buffer.position( srcPos );
+			buffer.get( ( float[] ) dst, dstPos, length );
+		}
+		else if ( src instanceof DoubleBuffer )
+		{
+			final DoubleBuffer buffer = ( ( DoubleBuffer ) src ).duplicate();
+			buffer.clear();
+			buffer.position( srcPos );
+			buffer.get( ( double[] ) dst, dstPos, length );
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Unsupported buffer: " + src );
+		}
+	}
+
+	/**
+	 * Returns a kernel that converts <code>float</code> values to unsigned
+	 * bytes, like a
+	 * {@link net.imglib2.converter.RealUnsignedByteConverter} with the
+	 * specified display range.
+	 */
+	public static Kernel floatToUnsignedByte( final double min, final double max )
+	{
+		return new Kernel()
+		{
+			@Override
+			public void convert( final Object src, final int srcPos, final Object dst, final int dstPos, final int length )
+			{
+				floatToUnsignedByte( ( float[] ) src, srcPos, ( byte[] ) dst, dstPos, length, min, max );
+			}
+		};
+	}
+
+	/**
+	 * Returns a kernel that converts <code>float</code> values to unsigned
+	 * shorts, like a
+	 * {@link net.imglib2.converter.RealUnsignedShortConverter} with the
+	 * specified display range.
+	 */
+	public static Kernel floatToUnsignedShort( final double min, final double max )
+	{
+		return new Kernel()
+		{
+			@Override
+			public void convert( final Object src, final int srcPos, final Object dst, final int dstPos, final int length )
+			{
+				floatToUnsignedShort( ( float[] ) src, srcPos, ( short[] ) dst, dstPos, length, min, max );
+			}
+		};
+	}
+
+	/**
+	 * Returns a kernel that extracts one 8-bit component from packed ARGB
+	 * <code>int</code> values into unsigned bytes.
+	 *
+	 * @param shift
+	 *            the position of the component: 24 for alpha, 16 for red, 8
+	 *            for green and 0 for blue.
+	 */
+	public static Kernel argbToUnsignedByte( final int shift )
+	{
+		return new Kernel()
+		{
+			@Override
+			public void convert( final Object src, final int srcPos, final Object dst, final int dstPos, final int length )
+			{
+				argbToUnsignedByte( ( int[] ) src, srcPos, ( byte[] ) dst, dstPos, length, shift );
+			}
+		};
+	}
+
+	/**
+	 * Extracts one 8-bit component from packed ARGB values.
+	 */
+	public static void argbToUnsignedByte( final int[] src, final int srcPos, final byte[] dst, final int dstPos, final int length, final int shift )
+	{
+		for ( int i = 0; i < length; i++ )
+			dst[ dstPos + i ] = ( byte ) ( src[ srcPos + i ] >>> shift );
+	}
+
+	/**
+	 * Packs 8-bit components into ARGB values.
+	 *
+	 * @param a
+	 *            the alpha components. If <code>null</code>, alpha is set to
+	 *            255.
+	 */
+	public static void unsignedBytesToARGB( final byte[] r, final byte[] g, final byte[] b, final byte[] a, final int[] dst, final int length )
+	{
+		if ( a == null )
+		{
+			for ( int i = 0; i < length; i++ )
+				dst[ i ] = 0xff000000 | ( ( r[ i ] & 0xff ) << 16 ) | ( ( g[ i ] & 0xff ) << 8 ) | ( b[ i ] & 0xff );
+		}
+		else
+		{
+			for ( int i = 0; i < length; i++ )
+				dst[ i ] = ( ( a[ i ] & 0xff ) << 24 ) | ( ( r[ i ] & 0xff ) << 16 ) | ( ( g[ i ] & 0xff ) << 8 ) | ( b[ i ] & 0xff );
+		}
+	}
+
+	/**
+	 * Maps <code>[min, max]</code> linearly to <code>[0, 255]</code>, rounds
+	 * and clamps.
+	 */
+	public static void floatToUnsignedByte( final float[] src, final int srcPos, final byte[] dst, final int dstPos, final int length, final double min, final double max )
+	{
+		final float factor = ( float ) ( 255. / ( max - min ) );
+		final float offset = ( float ) ( 0.5 - min * 255. / ( max - min ) );
+		for ( int i = 0; i < length; i++ )
+		{
+			final float v = src[ srcPos + i ] * factor + offset;
+			dst[ dstPos + i ] = ( byte ) ( int ) Math.max( 0f, Math.min( 255f, v ) );
+		}
+	}
+
+	/**
+	 * Maps <code>[min, max]</code> linearly to <code>[0, 65535]</code>, rounds
+	 * and clamps.
+	 */
+	public static void floatToUnsignedShort( final float[] src, final int srcPos, final short[] dst, final int dstPos, final int length, final double min, final double max )
+	{
+		final float factor = ( float ) ( 65535. / ( max - min ) );
+		final float offset = ( float ) ( 0.5 - min * 65535. / ( max - min ) );
+		for ( int i = 0; i < length; i++ )
+		{
+			final float v = src[ srcPos + i ] * factor + offset;
+			dst[ dstPos + i ] = ( short ) ( int ) Math.max( 0f, Math.min( 65535f, v ) );
+		}
+	}
+
+	private ConversionKernels()
+	{}
+}
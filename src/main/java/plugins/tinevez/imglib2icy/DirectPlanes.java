@@ -0,0 +1,142 @@
+package plugins.tinevez.imglib2icy;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.util.Intervals;
+
+import java.nio.Buffer;
+
+/**
+ * Gives access to the primitive arrays that store the XY planes of
+ * {@link ArrayImg}s and {@link PlanarImg}s, or to the NIO buffers that store
+ * them for images over buffer accesses, such as the ones of {@link MappedImgs}.
+ * <p>
+ * Planes are indexed linearly over the dimensions 2 and higher, the first of
+ * them varying fastest. This is the order of the planes of a
+ * {@link PlanarImg}.
+ */
+final class DirectPlanes
+{
+
+	/**
+	 * Returns <code>true</code> if the XY planes of the specified source are
+	 * stored in primitive arrays.
+	 */
+	static boolean isDirect( final RandomAccessibleInterval< ? > source )
+	{
+		final Object storage = storage( source );
+		return storage != null && storage.getClass().isArray();
+	}
+
+	/**
+	 * Returns <code>true</code> if the XY planes of the specified source are
+	 * stored in NIO buffers. {@link #array(RandomAccessibleInterval, long)}
+	 * then returns a {@link Buffer}.
+	 */
+	static boolean isBuffered( final RandomAccessibleInterval< ? > source )
+	{
+		return storage( source ) instanceof Buffer;
+	}
+
+	/**
+	 * Returns <code>true</code> if each XY plane of the specified source is
+	 * stored in its own primitive array, starting at offset 0 and with no
+	 * other content. Such arrays can be shared as they are.
+	 */
+	static boolean isWholePlanes( final RandomAccessibleInterval< ? > source )
+	{
+		if ( source instanceof PlanarImg )
+			return isDirect( source );
+		return isDirect( source ) && Intervals.numElements( source ) == source.dimension( 0 ) * source.dimension( 1 );
+	}
+
+	/**
+	 * Returns the primitive array or the buffer that stores the specified
+	 * plane. The plane
+	 * starts at {@link #offset(RandomAccessibleInterval, long)} in this array.
+	 */
+	static Object array( final RandomAccessibleInterval< ? > source, final long planeIndex )
+	{
+		if ( source instanceof PlanarImg )
+			return ( ( PlanarImg< ?, ? > ) source ).getPlane( ( int ) planeIndex ).getCurrentStorageArray();
+		return ( ( ArrayDataAccess< ? > ) ( ( ArrayImg< ?, ? > ) source ).update( null ) ).getCurrentStorageArray();
+	}
+
+	/**
+	 * Returns the offset of the specified plane in the array returned by
+	 * {@link #array(RandomAccessibleInterval, long)}.
+	 */
+	static int offset( final RandomAccessibleInterval< ? > source, final long planeIndex )
+	{
+		if ( source instanceof PlanarImg )
+			return 0;
+		return ( int ) ( planeIndex * source.dimension( 0 ) * source.dimension( 1 ) );
+	}
+
+	/**
+	 * Returns the linear index of the plane at the specified position. Only
+	 * the dimensions 2 and higher of the position are used.
+	 */
+	static long planeIndex( final RandomAccessibleInterval< ? > source, final long[] position )
+	{
+		long index = 0;
+		long stride = 1;
+		for ( int d = 2; d < source.numDimensions(); d++ )
+		{
+			index += position[ d ] * stride;
+			stride *= source.dimension( d );
+		}
+		return index;
+	}
+
+	/**
+	 * Returns an access that stores its values in the specified primitive
+	 * array, without copying it.
+	 */
+	static ArrayDataAccess< ? > access( final Object array )
+	{
+		if ( array instanceof byte[] )
+			return new ByteArray( ( byte[] ) array );
+		if ( array instanceof short[] )
+			return new ShortArray( ( short[] ) array );
+		if ( array instanceof int[] )
+			return new IntArray( ( int[] ) array );
+		if ( array instanceof long[] )
+			return new LongArray( ( long[] ) array );
+		if ( array instanceof float[] )
+			return new FloatArray( ( float[] ) array );
+		if ( array instanceof double[] )
+			return new DoubleArray( ( double[] ) array );
+		throw new IllegalArgumentException( "Not a primitive numeric array: " + array );
+	}
+
+	/**
+	 * Returns the storage of the first plane of the specified source, or
+	 * <code>null</code> if it is not an image made of array data accesses.
+	 */
+	private static Object storage( final RandomAccessibleInterval< ? > source )
+	{
+		if ( source instanceof PlanarImg )
+		{
+			final PlanarImg< ?, ? > img = ( PlanarImg< ?, ? > ) source;
+			return img.numSlices() == 0 ? null : img.getPlane( 0 ).getCurrentStorageArray();
+		}
+		if ( source instanceof ArrayImg )
+		{
+			final Object access = ( ( ArrayImg< ?, ? > ) source ).update( null );
+			return access instanceof ArrayDataAccess ? ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray() : null;
+		}
+		return null;
+	}
+
+	private DirectPlanes()
+	{}
+}
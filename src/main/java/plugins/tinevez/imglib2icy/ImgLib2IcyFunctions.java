@@ -1,10 +1,15 @@
 package plugins.tinevez.imglib2icy;
 
+import icy.gui.frame.progress.CancelableProgressFrame;
 import icy.image.IcyBufferedImage;
 import icy.sequence.Sequence;
+import icy.type.DataType;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.*;
@@ -12,6 +17,10 @@ import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+
 public class ImgLib2IcyFunctions
 {
 	public static < T extends NumericType< T > & RealType< T >> Sequence wrap( final RandomAccessibleInterval< T > rai )
@@ -76,21 +85,146 @@ public class ImgLib2IcyFunctions
 		}
 	}
   
+	/**
+	 * Wraps a source in a virtual sequence. When the source is a
+	 * {@link net.imglib2.img.planar.PlanarImg}, for instance one returned by
+	 * {@link #wrap(Sequence)}, the sequence uses its plane arrays directly,
+	 * without any copy.
+	 */
 	public static < T extends NumericType< T > & RealType< T >> Sequence wrap( final RandomAccessibleInterval< T > rai, final DimensionArrangement arrangement )
 	{
 		return new VirtualSequence( rai, arrangement );
 	}
 
+	/**
+	 * Wraps a {@link FloatType} source in a virtual sequence of the specified
+	 * data type. See
+	 * {@link VirtualSequence#VirtualSequence(RandomAccessibleInterval, DimensionArrangement, DataType, double, double)}.
+	 */
+	public static Sequence wrap( final RandomAccessibleInterval< FloatType > rai, final DimensionArrangement arrangement, final DataType displayType, final double displayMin, final double displayMax )
+	{
+		return new VirtualSequence( rai, arrangement, displayType, displayMin, displayMax );
+	}
+
+	/**
+	 * Wraps an {@link ARGBType} source in a virtual unsigned byte sequence
+	 * with one channel per color component. See
+	 * {@link VirtualSequence#VirtualSequence(RandomAccessibleInterval, DimensionArrangement, boolean)}.
+	 */
+	public static Sequence wrapARGB( final RandomAccessibleInterval< ARGBType > rai, final DimensionArrangement arrangement, final boolean withAlpha )
+	{
+		return new VirtualSequence( rai, arrangement, withAlpha );
+	}
+
+	/**
+	 * Copies the specified source into a new, regular sequence of the
+	 * specified data type, in parallel. A cancelable progress frame is shown
+	 * while the sequence is filled. See {@link SequenceMaterializer}.
+	 *
+	 * @return a new sequence, or <code>null</code> if the user canceled.
+	 */
+	public static < T extends RealType< T > > Sequence materialize( final RandomAccessibleInterval< T > rai, final DimensionArrangement arrangement, final DataType dataType )
+	{
+		final SequenceMaterializer< T > materializer = new SequenceMaterializer<>( rai, arrangement, dataType );
+		final CancelableProgressFrame frame = new CancelableProgressFrame( "Materializing " + rai );
+		materializer.setProgressListener( new SequenceMaterializer.ProgressListener()
+		{
+			@Override
+			public void progress( final int done, final int total )
+			{
+				frame.setLength( total );
+				frame.setPosition( done );
+				if ( frame.isCancelRequested() )
+					materializer.cancel();
+			}
+		} );
+		try
+		{
+			return materializer.materialize();
+		}
+		catch ( final CancellationException e )
+		{
+			return null;
+		}
+		finally
+		{
+			frame.close();
+		}
+	}
+
+	/**
+	 * Opens an image written by a {@link ChunkedExporter} in a virtual
+	 * sequence, reading its blocks lazily. See
+	 * {@link ChunkedImgs#openSequence(Path)}.
+	 */
+	public static Sequence openChunked( final Path dir ) throws IOException
+	{
+		return ChunkedImgs.openSequence( dir );
+	}
+
 	public static < T extends NumericType< T > & RealType< T > > Img< T > wrap( final Sequence sequence )
 	{
 		return ImgLib2IcySequenceAdapter.wrap( sequence );
 	}
 
+	/**
+	 * Wraps only the planes of the specified sequence inside the specified
+	 * interval. See {@link ImgLib2IcySequenceAdapter#wrap(Sequence, Interval)}.
+	 */
+	public static < T extends NumericType< T > & RealType< T > > RandomAccessibleInterval< T > wrap( final Sequence sequence, final Interval interval )
+	{
+		return ImgLib2IcySequenceAdapter.wrap( sequence, interval );
+	}
+
+	/**
+	 * Wraps the specified sequence in an image that follows the changes of the
+	 * sequence. See {@link LiveSequenceImg}.
+	 */
+	public static < T extends NativeType< T > & RealType< T > > LiveSequenceImg< T > wrapLive( final Sequence sequence )
+	{
+		return new LiveSequenceImg<>( sequence );
+	}
+
+	/**
+	 * Wraps the specified sequence in a lazy image that copies the planes of
+	 * the sequence only when they are accessed. See
+	 * {@link ImgLib2IcyLazySequenceAdapter}.
+	 */
+	public static < T extends NumericType< T > & RealType< T > > Img< T > wrapLazy( final Sequence sequence )
+	{
+		return ImgLib2IcyLazySequenceAdapter.wrap( sequence );
+	}
+
+	public static < T extends NumericType< T > & RealType< T > > Img< T > wrapLazy( final Sequence sequence, final long budget )
+	{
+		return ImgLib2IcyLazySequenceAdapter.wrap( sequence, budget );
+	}
+
 	public static < T extends NumericType< T > & RealType< T > > Img< T > wrap( final IcyBufferedImage image )
 	{
 		return wrap( new Sequence( image ) );
 	}
 
+	public static Img< ARGBType > wrapARGB( final Sequence sequence )
+	{
+		return ImgLib2IcySequenceAdapter.wrapARGB( sequence );
+	}
+
+	/**
+	 * Returns the content of the specified sequence as an image of the
+	 * specified type. See
+	 * {@link ImgLib2IcySequenceAdapter#wrapAs(Sequence, NativeType)}.
+	 */
+	public static < T extends NativeType< T > & RealType< T > > Img< T > wrapAs( final Sequence sequence, final T targetType )
+	{
+		return ImgLib2IcySequenceAdapter.wrapAs( sequence, targetType );
+	}
+
+	public static < T extends NativeType< T > & RealType< T > > Img< T > wrapAs( final Sequence sequence, final T targetType, final double inMin, final double inMax, final double outMin, final double outMax )
+	{
+		return ImgLib2IcySequenceAdapter.wrapAs( sequence, targetType, inMin, inMax, outMin, outMax );
+	}
+
 	public static Img< ByteType > wrapByte( final Sequence sequence )
 	{
 		return ImgLib2IcySequenceAdapter.wrapByte( sequence );
@@ -111,6 +245,11 @@ public class ImgLib2IcyFunctions
 		return ImgLib2IcySequenceAdapter.wrapInt( sequence );
 	}
 
+	public static Img< LongType > wrapLong( final Sequence sequence )
+	{
+		return ImgLib2IcySequenceAdapter.wrapLong( sequence );
+	}
+
 	public static Img< ShortType > wrapShort( final Sequence sequence )
 	{
 		return ImgLib2IcySequenceAdapter.wrapShort( sequence );
@@ -126,11 +265,78 @@ public class ImgLib2IcyFunctions
 		return ImgLib2IcySequenceAdapter.wrapUnsignedInt( sequence );
 	}
 
+	public static Img< UnsignedLongType > wrapUnsignedLong( final Sequence sequence )
+	{
+		return ImgLib2IcySequenceAdapter.wrapUnsignedLong( sequence );
+	}
+
 	public static Img< UnsignedShortType > wrapUnsignedShort( final Sequence sequence )
 	{
 		return ImgLib2IcySequenceAdapter.wrapUnsignedShort( sequence );
 	}
 
+	/**
+	 * Returns the Icy data type that stores the values of the specified
+	 * ImgLib2 type without conversion, or <code>null</code> if there is none.
+	 */
+	public static DataType getDataType( final Type< ? > type )
+	{
+		if ( type instanceof ByteType )
+			return DataType.BYTE;
+		if ( type instanceof UnsignedByteType )
+			return DataType.UBYTE;
+		if ( type instanceof ShortType )
+			return DataType.SHORT;
+		if ( type instanceof UnsignedShortType )
+			return DataType.USHORT;
+		if ( type instanceof IntType )
+			return DataType.INT;
+		if ( type instanceof UnsignedIntType )
+			return DataType.UINT;
+		if ( type instanceof LongType )
+			return DataType.LONG;
+		if ( type instanceof UnsignedLongType )
+			return DataType.ULONG;
+		if ( type instanceof FloatType )
+			return DataType.FLOAT;
+		if ( type instanceof DoubleType )
+			return DataType.DOUBLE;
+		return null;
+	}
+
+	/**
+	 * Returns a new instance of the ImgLib2 type that stores the values of the
+	 * specified Icy data type without conversion.
+	 */
+	public static NativeType< ? > getType( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case BYTE:
+			return new ByteType();
+		case UBYTE:
+			return new UnsignedByteType();
+		case SHORT:
+			return new ShortType();
+		case USHORT:
+			return new UnsignedShortType();
+		case INT:
+			return new IntType();
+		case UINT:
+			return new UnsignedIntType();
+		case LONG:
+			return new LongType();
+		case ULONG:
+			return new UnsignedLongType();
+		case FLOAT:
+			return new FloatType();
+		case DOUBLE:
+			return new DoubleType();
+		default:
+			throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
+
 	public static DimensionArrangement getDimensionArrangement( final Sequence sequence )
 	{
 		final int sizeC = sequence.getSizeC();
@@ -0,0 +1,130 @@
+package plugins.tinevez.imglib2icy;
+
+import icy.sequence.Sequence;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.cache.img.optional.CacheOptions.CacheType;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps Icy sequences in lazy, cache-backed ImgLib2 images.
+ * <p>
+ * The images have the same dimensions as the ones returned by
+ * {@link ImgLib2IcySequenceAdapter#wrap(Sequence)}: X, Y, C, Z, T with
+ * singleton dimensions squeezed. Each cell of the image is one XY plane of the
+ * sequence, copied from the sequence the first time a cell touching it is
+ * accessed. Cells are evicted once the memory budget is exceeded, and loaded
+ * again if they are accessed again.
+ * <p>
+ * The images are read-only: modifying them does not modify the sequence, and
+ * the modifications are lost when the cell is evicted.
+ */
+public class ImgLib2IcyLazySequenceAdapter
+{
+
+	/**
+	 * The default number of bytes the planes loaded by a lazy image can use.
+	 */
+	public static final long DEFAULT_CACHE_BUDGET = 256L * 1024L * 1024L;
+
+	/*
+	 * METHODS
+	 */
+
+	public static < T extends NumericType< T > & RealType< T > > Img< T > wrap( final Sequence sequence )
+	{
+		return wrap( sequence, DEFAULT_CACHE_BUDGET );
+	}
+
+	/**
+	 * Wraps the specified sequence in a lazy image.
+	 *
+	 * @param sequence
+	 *            the sequence to wrap.
+	 * @param budget
+	 *            the maximal number of bytes of the planes kept in memory by
+	 *            the image. At least one plane is always kept.
+	 * @return a new lazy image.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static < T extends NumericType< T > & RealType< T > > Img< T > wrap( final Sequence sequence, final long budget )
+	{
+		if ( Metrics.collecting() )
+			Metrics.wrapped( "lazy", sequence );
+		return ( Img ) wrap( sequence, ( NativeType ) ImgLib2IcyFunctions.getType( sequence.getDataType_() ), budget );
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private static < T extends NativeType< T > > Img< T > wrap( final Sequence sequence, final T type, final long budget )
+	{
+		final int sizeX = sequence.getSizeX();
+		final int sizeY = sequence.getSizeY();
+		final long[] allDims = new long[] { sizeX, sizeY, sequence.getSizeC(), sequence.getSizeZ(), sequence.getSizeT() };
+
+		/*
+		 * Index of the X, Y, C, Z and T axes in the squeezed dimensions, -1 if
+		 * they are squeezed.
+		 */
+		final int[] axes = new int[ allDims.length ];
+		final long[] dims = new long[ allDims.length ];
+		final int[] cellDims = new int[ allDims.length ];
+		int n = 0;
+		for ( int d = 0; d < allDims.length; d++ )
+		{
+			if ( allDims[ d ] <= 1 )
+			{
+				axes[ d ] = -1;
+				continue;
+			}
+			axes[ d ] = n;
+			dims[ n ] = allDims[ d ];
+			cellDims[ n ] = d < 2 ? ( int ) allDims[ d ] : 1;
+			n++;
+		}
+
+		final long planeBytes = ( long ) sizeX * sizeY * sequence.getDataType_().getSize();
+		final int maxCacheSize = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, budget / Math.max( 1, planeBytes ) ) );
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( Arrays.copyOf( cellDims, n ) )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( maxCacheSize );
+
+		final AtomicLong loaded = new AtomicLong();
+		final CellLoader< T > loader = new CellLoader< T >()
+		{
+			@Override
+			public void load( final SingleCellArrayImg< T, ? > cell ) throws Exception
+			{
+				loaded.incrementAndGet();
+				final int c = axes[ 2 ] < 0 ? 0 : ( int ) cell.min( axes[ 2 ] );
+				final int z = axes[ 3 ] < 0 ? 0 : ( int ) cell.min( axes[ 3 ] );
+				final int t = axes[ 4 ] < 0 ? 0 : ( int ) cell.min( axes[ 4 ] );
+				System.arraycopy( sequence.getDataXY( t, z, c ), 0, cell.getStorageArray(), 0, sizeX * sizeY );
+			}
+		};
+
+		final Img< T > img = new ReadOnlyCachedCellImgFactory( options ).create( Arrays.copyOf( dims, n ), type, loader );
+
+		// The planes loaded so far, bounded by the cache size: an upper bound.
+		MemoryAccounting.register( img, new MemoryAccounting.Accountant()
+		{
+			@Override
+			public MemoryAccounting.Usage usage( final Object object )
+			{
+				return new MemoryAccounting.Usage( 0, 0, Math.min( loaded.get(), maxCacheSize ) * planeBytes, null );
+			}
+		} );
+		return img;
+	}
+}
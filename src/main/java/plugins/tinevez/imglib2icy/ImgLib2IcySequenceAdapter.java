@@ -2,18 +2,34 @@ package plugins.tinevez.imglib2icy;
 
 import icy.image.IcyBufferedImage;
 import icy.sequence.Sequence;
+import icy.type.DataType;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.RealTypeConverters;
 import net.imglib2.img.Img;
 import net.imglib2.img.basictypeaccess.array.*;
 import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
 import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.*;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class ImgLib2IcySequenceAdapter
 {
@@ -76,8 +92,19 @@ public class ImgLib2IcySequenceAdapter
 		return calibration;
 	}
 
-	@SuppressWarnings( { "unchecked", "rawtypes" } )
 	public static < T extends NumericType< T > & RealType< T > > Img< T > wrap( final Sequence sequence )
+	{
+		if ( Metrics.collecting() )
+			Metrics.wrapped( "wrap", sequence );
+		return wrapSource( sequence );
+	}
+
+	/**
+	 * Same as {@link #wrap(Sequence)}, without counting a wrap in the
+	 * {@link Metrics}, for the methods that wrap a sequence to read it.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	static < T extends NumericType< T > & RealType< T > > Img< T > wrapSource( final Sequence sequence )
 	{
 		if (sequence instanceof VirtualSequence)
 			return Cast.unchecked(((VirtualSequence) sequence).getSource());
@@ -85,29 +112,304 @@ public class ImgLib2IcySequenceAdapter
 		switch ( sequence.getDataType_() )
 		{
 		case BYTE:
-			return ( Img ) wrapByte( sequence );
+			return ( Img ) lookup( sequence, Kind.BYTE );
 		case INT:
-			return ( Img ) wrapInt( sequence );
+			return ( Img ) lookup( sequence, Kind.INT );
 		case SHORT:
-			return ( Img ) wrapShort( sequence );
+			return ( Img ) lookup( sequence, Kind.SHORT );
 		case UBYTE:
-			return ( Img ) wrapUnsignedByte( sequence );
+			return ( Img ) lookup( sequence, Kind.UNSIGNED_BYTE );
 		case UINT:
-			return ( Img ) wrapUnsignedInt( sequence );
+			return ( Img ) lookup( sequence, Kind.UNSIGNED_INT );
 		case USHORT:
-			return ( Img ) wrapUnsignedShort( sequence );
+			return ( Img ) lookup( sequence, Kind.UNSIGNED_SHORT );
 		case DOUBLE:
-			return ( Img ) wrapDouble( sequence );
+			return ( Img ) lookup( sequence, Kind.DOUBLE );
 		case FLOAT:
-			return ( Img ) wrapFloat( sequence );
+			return ( Img ) lookup( sequence, Kind.FLOAT );
 		case LONG:
+			return ( Img ) lookup( sequence, Kind.LONG );
 		case ULONG:
+			return ( Img ) lookup( sequence, Kind.UNSIGNED_LONG );
 		default:
-			throw new RuntimeException( "Only byte, int, short, float or double supported!" );
+			throw new RuntimeException( "Only byte, short, int, long, float or double supported!" );
+		}
+	}
+
+	/**
+	 * Wraps the part of the specified sequence inside the specified interval.
+	 * <p>
+	 * The interval is expressed in the coordinates of the image returned by
+	 * {@link #wrap(Sequence)}: X, Y, C, Z, T with singleton dimensions
+	 * squeezed. Only the planes inside the interval are wrapped, without copy,
+	 * and the planes outside are never loaded. The returned image has the
+	 * same coordinates as the interval.
+	 * <p>
+	 * For a {@link VirtualSequence}, the returned image is a view over its
+	 * source, so that no plane is projected. The interval is then expressed
+	 * in the coordinates of the source if it has as many dimensions, and in
+	 * the X, Y, C, Z, T coordinates of the sequence otherwise.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static < T extends NumericType< T > & RealType< T > > RandomAccessibleInterval< T > wrap( final Sequence sequence, final Interval interval )
+	{
+		if ( Metrics.collecting() )
+			Metrics.wrapped( "interval", sequence );
+		if ( sequence instanceof VirtualSequence )
+			return wrapVirtual( ( VirtualSequence ) sequence, interval );
+
+		final long[] sizes = getDims( sequence );
+		final long[] dims = getSqueezedDims( sequence );
+		if ( interval.numDimensions() != dims.length )
+			throw new IllegalArgumentException( "Expected an interval with " + dims.length + " dimensions, got " + interval.numDimensions() + "." );
+		if ( !Intervals.contains( new FinalInterval( dims ), interval ) )
+			throw new IllegalArgumentException( "The interval " + Util.printInterval( interval ) + " is not inside the sequence." );
+
+		// Range of each of X, Y, C, Z and T covered by the interval.
+		final long[] min = new long[ sizes.length ];
+		final long[] max = new long[ sizes.length ];
+		int d = 0;
+		for ( int i = 0; i < sizes.length; i++ )
+		{
+			if ( sizes[ i ] <= 1 )
+				continue;
+			min[ i ] = interval.min( d );
+			max[ i ] = interval.max( d );
+			d++;
+		}
+
+		final List< ArrayDataAccess< ? > > planes = new ArrayList<>();
+		for ( int t = ( int ) min[ 4 ]; t <= max[ 4 ]; t++ )
+			for ( int z = ( int ) min[ 3 ]; z <= max[ 3 ]; z++ )
+				for ( int c = ( int ) min[ 2 ]; c <= max[ 2 ]; c++ )
+					planes.add( DirectPlanes.access( sequence.getDataXY( t, z, c ) ) );
+
+		// Whole XY planes, over the C, Z and T ranges of the interval.
+		final long[] subDims = new long[ dims.length ];
+		final long[] offset = new long[ dims.length ];
+		subDims[ 0 ] = dims[ 0 ];
+		subDims[ 1 ] = dims[ 1 ];
+		for ( int i = 2; i < dims.length; i++ )
+		{
+			subDims[ i ] = interval.dimension( i );
+			offset[ i ] = interval.min( i );
+		}
+
+		final NativeType type = ImgLib2IcyFunctions.getType( sequence.getDataType_() );
+		final PlanarImg img = new PlanarImg( planes, subDims, new Fraction() );
+		img.setLinkedType( type.getNativeTypeFactory().createLinkedType( img ) );
+		return Views.interval( Views.translate( ( RandomAccessibleInterval< T > ) img, offset ), interval );
+	}
+
+	/**
+	 * Returns the view of the source of the specified virtual sequence over
+	 * the specified interval. An interval in the squeezed X, Y, C, Z, T
+	 * coordinates of the sequence is mapped onto the dimensions of the source,
+	 * and the singleton dimensions of the source it does not have are sliced
+	 * away.
+	 */
+	private static < T > RandomAccessibleInterval< T > wrapVirtual( final VirtualSequence sequence, final Interval interval )
+	{
+		final RandomAccessibleInterval< T > source = Cast.unchecked( sequence.getSource() );
+		if ( interval.numDimensions() == source.numDimensions() )
+		{
+			if ( !Intervals.contains( source, interval ) )
+				throw new IllegalArgumentException( "The interval " + Util.printInterval( interval ) + " is not inside the source " + Util.printInterval( source ) + "." );
+			return Views.interval( source, interval );
+		}
+
+		final long[] sizes = getDims( sequence );
+		final long[] dims = getSqueezedDims( sequence );
+		if ( interval.numDimensions() != dims.length )
+			throw new IllegalArgumentException( "Expected an interval with " + source.numDimensions() + " or " + dims.length + " dimensions, got " + interval.numDimensions() + "." );
+		if ( !Intervals.contains( new FinalInterval( dims ), interval ) )
+			throw new IllegalArgumentException( "The interval " + Util.printInterval( interval ) + " is not inside the sequence." );
+
+		// Dimension of the source for each of X, Y, C, Z and T, -1 if absent.
+		final DimensionArrangement arrangement = sequence.getArrangement();
+		final int[] sourceDims = new int[] { 0, 1,
+				arrangement.hasC() ? arrangement.dimC() : -1,
+				arrangement.hasZ() ? arrangement.dimZ() : -1,
+				arrangement.hasT() ? arrangement.dimT() : -1 };
+
+		final long[] min = Intervals.minAsLongArray( source );
+		final long[] max = Intervals.maxAsLongArray( source );
+		final long[] translation = new long[ dims.length ];
+		int d = 0;
+		for ( int i = 0; i < sizes.length; i++ )
+		{
+			if ( sizes[ i ] <= 1 )
+				continue;
+			if ( sourceDims[ i ] < 0 )
+				throw new IllegalArgumentException( "The dimension " + d + " of the interval is not a dimension of the source of the virtual sequence." );
+			final long offset = source.min( sourceDims[ i ] );
+			min[ sourceDims[ i ] ] = offset + interval.min( d );
+			max[ sourceDims[ i ] ] = offset + interval.max( d );
+			translation[ d ] = -offset;
+			d++;
+		}
+
+		// Slice the last dimensions first, so that the others keep their index.
+		RandomAccessibleInterval< T > view = Views.interval( source, min, max );
+		for ( int i = sizes.length - 1; i >= 2; i-- )
+		{
+			if ( sizes[ i ] <= 1 && sourceDims[ i ] >= 0 )
+				view = Views.hyperSlice( view, sourceDims[ i ], min[ sourceDims[ i ] ] );
+		}
+		return Views.translate( view, translation );
+	}
+
+	/**
+	 * Returns the content of the specified sequence as an image of the
+	 * specified type, with the same dimensions as {@link #wrap(Sequence)}.
+	 * <p>
+	 * If the type matches the type of the image returned by
+	 * {@link #wrap(Sequence)}, this image is returned without copy. For a
+	 * {@link VirtualSequence}, it is the source, whose type can differ from
+	 * the data type of the sequence. Otherwise, the planes are converted in
+	 * parallel into a new {@link PlanarImg}, with the
+	 * {@link RealTypeConverters} rules.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the wrapped image does not have real values, as the
+	 *             source of a {@link VirtualSequence} over ARGB values.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < T extends NativeType< T > & RealType< T > > Img< T > wrapAs( final Sequence sequence, final T targetType )
+	{
+		if ( Metrics.collecting() )
+			Metrics.wrapped( "wrapAs", sequence );
+		final RandomAccessibleInterval< ? extends RealType< ? > > source = realSource( sequence );
+		if ( source.getType().getClass() == targetType.getClass() && source instanceof Img )
+			return ( Img< T > ) source;
+
+		final Img< T > img = new PlanarImgFactory<>( targetType ).create( Intervals.dimensionsAsLongArray( source ) );
+		LayoutConversions.copyPlanes( source, img, RealTypeConverters.getConverter( source.getType(), targetType ) );
+		return img;
+	}
+
+	/**
+	 * Converts the content of the specified sequence in parallel into a new
+	 * image of the specified type, rescaling intensities: the range
+	 * <code>[inMin, inMax]</code> is mapped linearly to
+	 * <code>[outMin, outMax]</code>. Values are clamped to the range of the
+	 * target type.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the wrapped image does not have real values, as the
+	 *             source of a {@link VirtualSequence} over ARGB values.
+	 */
+	public static < T extends NativeType< T > & RealType< T > > Img< T > wrapAs( final Sequence sequence, final T targetType, final double inMin, final double inMax, final double outMin, final double outMax )
+	{
+		if ( Metrics.collecting() )
+			Metrics.wrapped( "wrapAs", sequence );
+		final RandomAccessibleInterval< ? extends RealType< ? > > source = realSource( sequence );
+		final Img< T > img = new PlanarImgFactory<>( targetType ).create( Intervals.dimensionsAsLongArray( source ) );
+		final double scale = ( outMax - outMin ) / ( inMax - inMin );
+		final double offset = outMin - inMin * scale;
+		LayoutConversions.copyPlanes( source, img, new RescalingConverter( scale, offset, targetType.getMinValue(), targetType.getMaxValue() ) );
+		return img;
+	}
+
+	/**
+	 * Returns the image returned by {@link #wrap(Sequence)}, or the source of
+	 * a {@link VirtualSequence}, after checking that it has real values.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static RandomAccessibleInterval< ? extends RealType< ? > > realSource( final Sequence sequence )
+	{
+		final RandomAccessibleInterval< ? > source = sequence instanceof VirtualSequence ? ( ( VirtualSequence ) sequence ).getSource() : wrapSource( sequence );
+		final Object type = source.getType();
+		if ( !( type instanceof RealType ) )
+			throw new IllegalArgumentException( "Cannot convert " + type.getClass().getSimpleName()
+					+ " values, only real values are supported. Split ARGB sources in channels first." );
+		return ( RandomAccessibleInterval< ? extends RealType< ? > > ) source;
+	}
+
+	/**
+	 * Maps values linearly, then clamps them.
+	 */
+	public static final class RescalingConverter implements Converter< RealType< ? >, RealType< ? > >
+	{
+
+		private final double scale;
+
+		private final double offset;
+
+		private final double min;
+
+		private final double max;
+
+		public RescalingConverter( final double scale, final double offset, final double min, final double max )
+		{
+			this.scale = scale;
+			this.offset = offset;
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		public void convert( final RealType< ? > input, final RealType< ? > output )
+		{
+			output.setReal( Math.max( min, Math.min( max, input.getRealDouble() * scale + offset ) ) );
+		}
+	}
+
+	/**
+	 * Forgets the images wrapped over the specified sequence, so that the next
+	 * calls to the wrap methods wrap it again. This is done automatically when
+	 * the sequence notifies a data or type change.
+	 */
+	public static void invalidate( final Sequence sequence )
+	{
+		WrappedImgCache.invalidate( sequence );
+	}
+
+	/**
+	 * Packs an unsigned byte sequence with 3 (RGB) or 4 (RGBA) channels in an
+	 * {@link ARGBType} image of dimensions X, Y, Z, T (singletons squeezed).
+	 * <p>
+	 * Icy stores each channel in its own array, so the components are packed
+	 * in a copy. When there are only 3 channels, alpha is set to 255. The copy
+	 * belongs to the caller: unlike the other wrap methods, each call returns
+	 * a new image, and modifying it does not modify the sequence.
+	 */
+	public static Img< ARGBType > wrapARGB( final Sequence sequence )
+	{
+		if ( Metrics.collecting() )
+			Metrics.wrapped( "wrap", sequence );
+		final Img< ARGBType > img = createARGB( sequence );
+		MemoryAccounting.registerOwned( img, 4l * sequence.getSizeX() * sequence.getSizeY() * sequence.getSizeZ() * sequence.getSizeT() );
+		return img;
+	}
+
+	private static Img< ARGBType > createARGB( final Sequence sequence )
+	{
+		if ( sequence.getDataType_() != DataType.UBYTE )
+			throw new IllegalArgumentException( "Only unsigned byte sequences can be packed in ARGB, got " + sequence.getDataType_() + "." );
+		final int sizeC = sequence.getSizeC();
+		if ( sizeC != 3 && sizeC != 4 )
+			throw new IllegalArgumentException( "Only sequences with 3 or 4 channels can be packed in ARGB, got " + sizeC + "." );
+
+		final long[] dims = squeezeSingletonDims( new long[] { sequence.getSizeX(), sequence.getSizeY(), sequence.getSizeZ(), sequence.getSizeT() } );
+		final PlanarImg< ARGBType, IntArray > img = PlanarImgs.argbs( dims );
+		final int length = sequence.getSizeX() * sequence.getSizeY();
+		int no = 0;
+		for ( final IcyBufferedImage image : sequence.getAllImage() )
+		{
+			final byte[] alpha = sizeC == 4 ? image.getDataXYAsByte( 3 ) : null;
+			final int[] data = img.getPlane( no++ ).getCurrentStorageArray();
+			ConversionKernels.unsignedBytesToARGB( image.getDataXYAsByte( 0 ), image.getDataXYAsByte( 1 ), image.getDataXYAsByte( 2 ), alpha, data, length );
 		}
+		return img;
 	}
 
 	public static Img< ByteType > wrapByte( final Sequence sequence )
+	{
+		return cached( sequence, Kind.BYTE );
+	}
+
+	private static Img< ByteType > createByte( final Sequence sequence )
 	{
 		final PlanarImg< ByteType, ByteArray > img = PlanarImgs.bytes( getSqueezedDims( sequence ) );
 		int no = 0;
@@ -124,6 +426,11 @@ public class ImgLib2IcySequenceAdapter
 	}
 
 	public static Img< DoubleType > wrapDouble( final Sequence sequence )
+	{
+		return cached( sequence, Kind.DOUBLE );
+	}
+
+	private static Img< DoubleType > createDouble( final Sequence sequence )
 	{
 		final PlanarImg< DoubleType, DoubleArray > img = PlanarImgs.doubles( getSqueezedDims( sequence ) );
 		int no = 0;
@@ -140,6 +447,11 @@ public class ImgLib2IcySequenceAdapter
 	}
 
 	public static Img< FloatType > wrapFloat( final Sequence sequence )
+	{
+		return cached( sequence, Kind.FLOAT );
+	}
+
+	private static Img< FloatType > createFloat( final Sequence sequence )
 	{
 		final PlanarImg< FloatType, FloatArray > img = PlanarImgs.floats( getSqueezedDims( sequence ) );
 		int no = 0;
@@ -156,6 +468,11 @@ public class ImgLib2IcySequenceAdapter
 	}
 
 	public static Img< IntType > wrapInt( final Sequence sequence )
+	{
+		return cached( sequence, Kind.INT );
+	}
+
+	private static Img< IntType > createInt( final Sequence sequence )
 	{
 		final PlanarImg< IntType, IntArray > img = PlanarImgs.ints( getSqueezedDims( sequence ) );
 		int no = 0;
@@ -171,7 +488,33 @@ public class ImgLib2IcySequenceAdapter
 		return img;
 	}
 
+	public static Img< LongType > wrapLong( final Sequence sequence )
+	{
+		return cached( sequence, Kind.LONG );
+	}
+
+	private static Img< LongType > createLong( final Sequence sequence )
+	{
+		final PlanarImg< LongType, LongArray > img = PlanarImgs.longs( getSqueezedDims( sequence ) );
+		int no = 0;
+		for ( final IcyBufferedImage image : sequence.getAllImage() )
+		{
+			for ( int c = 0; c < sequence.getSizeC(); c++ )
+			{
+				final long[] data = ( long[] ) image.getDataXY( c );
+				final LongArray plane = new LongArray( data );
+				img.setPlane( no++, plane );
+			}
+		}
+		return img;
+	}
+
 	public static Img< ShortType > wrapShort( final Sequence sequence )
+	{
+		return cached( sequence, Kind.SHORT );
+	}
+
+	private static Img< ShortType > createShort( final Sequence sequence )
 	{
 		final PlanarImg< ShortType, ShortArray > img = PlanarImgs.shorts( getSqueezedDims( sequence ) );
 		int no = 0;
@@ -188,6 +531,11 @@ public class ImgLib2IcySequenceAdapter
 	}
 
 	public static Img< UnsignedByteType > wrapUnsignedByte( final Sequence sequence )
+	{
+		return cached( sequence, Kind.UNSIGNED_BYTE );
+	}
+
+	private static Img< UnsignedByteType > createUnsignedByte( final Sequence sequence )
 	{
 		final PlanarImg< UnsignedByteType, ByteArray > img = PlanarImgs.unsignedBytes( getSqueezedDims( sequence ) );
 		int no = 0;
@@ -204,6 +552,11 @@ public class ImgLib2IcySequenceAdapter
 	}
 
 	public static Img< UnsignedIntType > wrapUnsignedInt( final Sequence sequence )
+	{
+		return cached( sequence, Kind.UNSIGNED_INT );
+	}
+
+	private static Img< UnsignedIntType > createUnsignedInt( final Sequence sequence )
 	{
 		final PlanarImg< UnsignedIntType, IntArray > img = PlanarImgs.unsignedInts( getSqueezedDims( sequence ) );
 		int no = 0;
@@ -219,7 +572,33 @@ public class ImgLib2IcySequenceAdapter
 		return img;
 	}
 
+	public static Img< UnsignedLongType > wrapUnsignedLong( final Sequence sequence )
+	{
+		return cached( sequence, Kind.UNSIGNED_LONG );
+	}
+
+	private static Img< UnsignedLongType > createUnsignedLong( final Sequence sequence )
+	{
+		final PlanarImg< UnsignedLongType, LongArray > img = PlanarImgs.unsignedLongs( getSqueezedDims( sequence ) );
+		int no = 0;
+		for ( final IcyBufferedImage image : sequence.getAllImage() )
+		{
+			for ( int c = 0; c < sequence.getSizeC(); c++ )
+			{
+				final long[] data = ( long[] ) image.getDataXY( c );
+				final LongArray plane = new LongArray( data );
+				img.setPlane( no++, plane );
+			}
+		}
+		return img;
+	}
+
 	public static Img< UnsignedShortType > wrapUnsignedShort( final Sequence sequence )
+	{
+		return cached( sequence, Kind.UNSIGNED_SHORT );
+	}
+
+	private static Img< UnsignedShortType > createUnsignedShort( final Sequence sequence )
 	{
 		final PlanarImg< UnsignedShortType, ShortArray > img = PlanarImgs.unsignedShorts( getSqueezedDims( sequence ) );
 		int no = 0;
@@ -237,4 +616,84 @@ public class ImgLib2IcySequenceAdapter
 
 	private ImgLib2IcySequenceAdapter()
 	{}
+
+	/*
+	 * IDENTITY CACHE
+	 */
+
+	/**
+	 * The wrap methods whose results are cached: only the ones that share the
+	 * arrays of the sequence, never copies that callers could modify.
+	 */
+	private enum Kind
+	{
+		BYTE,
+		DOUBLE,
+		FLOAT,
+		INT,
+		LONG,
+		SHORT,
+		UNSIGNED_BYTE,
+		UNSIGNED_INT,
+		UNSIGNED_LONG,
+		UNSIGNED_SHORT;
+	}
+
+	/**
+	 * Counts a wrap in the {@link Metrics}, then returns the image of the
+	 * specified kind wrapped over the sequence.
+	 */
+	private static < I > I cached( final Sequence sequence, final Kind kind )
+	{
+		if ( Metrics.collecting() )
+			Metrics.wrapped( "wrap", sequence );
+		return lookup( sequence, kind );
+	}
+
+	/**
+	 * Returns the image of the specified kind wrapped over the sequence, from
+	 * the cache if the sequence has not changed since it was wrapped.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static < I > I lookup( final Sequence sequence, final Kind kind )
+	{
+		final long generation = WrappedImgCache.generation( sequence );
+		Object img = WrappedImgCache.get( sequence, kind );
+		if ( img == null )
+		{
+			img = create( sequence, kind );
+			WrappedImgCache.put( sequence, kind, img, generation );
+			MemoryAccounting.registerShared( img, sequence );
+		}
+		return ( I ) img;
+	}
+
+	private static Object create( final Sequence sequence, final Kind kind )
+	{
+		switch ( kind )
+		{
+		case BYTE:
+			return createByte( sequence );
+		case DOUBLE:
+			return createDouble( sequence );
+		case FLOAT:
+			return createFloat( sequence );
+		case INT:
+			return createInt( sequence );
+		case LONG:
+			return createLong( sequence );
+		case SHORT:
+			return createShort( sequence );
+		case UNSIGNED_BYTE:
+			return createUnsignedByte( sequence );
+		case UNSIGNED_INT:
+			return createUnsignedInt( sequence );
+		case UNSIGNED_LONG:
+			return createUnsignedLong( sequence );
+		case UNSIGNED_SHORT:
+			return createUnsignedShort( sequence );
+		default:
+			throw new IllegalArgumentException( "Unknown kind: " + kind );
+		}
+	}
 }
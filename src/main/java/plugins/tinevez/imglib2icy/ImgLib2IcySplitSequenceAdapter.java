@@ -1,20 +1,29 @@
 package plugins.tinevez.imglib2icy;
 
+import icy.image.IcyBufferedImage;
 import icy.sequence.Sequence;
+import icy.type.DataType;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
 import net.imglib2.img.Img;
-import net.imglib2.img.basictypeaccess.array.*;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
 import net.imglib2.img.planar.PlanarImg;
-import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.*;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+import net.imglib2.view.Views;
 import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class ImgLib2IcySplitSequenceAdapter
 {
@@ -83,82 +92,6 @@ public class ImgLib2IcySplitSequenceAdapter
 		return dims;
 	}
 
-	private static int linearIndexFromCoordinate(
-			final int c, final int z, final int t,
-			final int sizeC, final int sizeZ,
-			final boolean splitC, final boolean splitZ, final boolean splitT )
-	{
-		final int A;
-		final int B;
-		final int C;
-		if ( splitC )
-		{
-			if ( splitZ )
-			{
-				A = 1;
-				B = sizeC;
-				if ( splitT )
-				{
-					// Split everything
-					C = sizeC * sizeZ;
-				}
-				else
-				{
-					C = 0;
-				}
-			}
-			else
-			{
-				A = 1;
-				// Aggregate Z
-				if ( splitT )
-				{
-					B = 0;
-					C = sizeC;
-				}
-				else
-				{
-					// Aggregate Z & T
-					B = 0;
-					C = 0;
-				}
-			}
-		}
-		else
-		{
-			// Aggregate C.
-			A = 0;
-			if ( splitZ )
-			{
-				B = 1;
-				if ( splitT )
-				{
-					C = sizeZ;
-				}
-				else
-				{
-					// Aggregate C & T
-					C = 0;
-				}
-			}
-			else
-			{
-				B = 0;
-				if ( splitT )
-				{
-					// Aggregate C & Z only
-					C = 1;
-				}
-				else
-				{
-					// Aggregate everything.
-					C = 0;
-				}
-			}
-		}
-		return A * c + B * z + C * t;
-	}
-
 	private static long[] squeezeSingletonDims( final long[] originalDims )
 	{
 		final long[] dims = new long[ originalDims.length ];
@@ -196,372 +129,392 @@ public class ImgLib2IcySplitSequenceAdapter
 		case FLOAT:
 			return ( List ) wrapFloat( sequence, splitC, splitZ, splitT );
 		case LONG:
+			return ( List ) wrapLong( sequence, splitC, splitZ, splitT );
 		case ULONG:
+			return ( List ) wrapUnsignedLong( sequence, splitC, splitZ, splitT );
 		default:
-			throw new RuntimeException( "Only byte, int, short, float or double supported!" );
+			throw new RuntimeException( "Only byte, short, int, long, float or double supported!" );
 		}
 	}
 
 	public static List< Img< ByteType > > wrapByte( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
 	{
-		final List< Img< ByteType > > imgs = new ArrayList<>();
-		final List< Integer > planeCounters = new ArrayList<>();
-
-		final int sizeC = sequence.getSizeC();
-		final int sizeZ = sequence.getSizeZ();
-		final int sizeT = sequence.getSizeT();
-
-		for ( int t = 0; t < sizeT; t++ )
-		{
-			for ( int z = 0; z < sizeZ; z++ )
-			{
-				for ( int c = 0; c < sizeC; c++ )
-				{
-					final int index = linearIndexFromCoordinate( c, z, t,
-							sizeC, sizeZ,
-							splitC, splitZ, splitT );
-
-					final PlanarImg< ByteType, ByteArray > img;
-					Integer count;
-					if ( index >= imgs.size() )
-					{
-						img = PlanarImgs.bytes( getSqueezedDims( sequence, splitC, splitZ, splitT ) );
-						imgs.add( img );
-
-						count = 0;
-						planeCounters.add( count );
-					}
-					else
-					{
-						img = ( PlanarImg< ByteType, ByteArray > ) imgs.get( index );
-						count = planeCounters.get( index );
-					}
-
-					final byte[] data = sequence.getDataXYAsByte( t, z, c );
-					final ByteArray plane = new ByteArray( data );
-					img.setPlane( count++, plane );
-					planeCounters.set( index, count );
-				}
-			}
-		}
-		return imgs;
+		return wrapLazily( sequence, new ByteType(), splitC, splitZ, splitT );
 	}
 
 	public static List< Img< DoubleType > > wrapDouble( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
 	{
-		final List< Img< DoubleType > > imgs = new ArrayList<>();
-		final List< Integer > planeCounters = new ArrayList<>();
-
-		final int sizeC = sequence.getSizeC();
-		final int sizeZ = sequence.getSizeZ();
-		final int sizeT = sequence.getSizeT();
-
-		for ( int t = 0; t < sizeT; t++ )
-		{
-			for ( int z = 0; z < sizeZ; z++ )
-			{
-				for ( int c = 0; c < sizeC; c++ )
-				{
-					final int index = linearIndexFromCoordinate( c, z, t,
-							sizeC, sizeZ,
-							splitC, splitZ, splitT );
-
-					final PlanarImg< DoubleType, DoubleArray > img;
-					Integer count;
-					if ( index >= imgs.size() )
-					{
-						img = PlanarImgs.doubles( getSqueezedDims( sequence, splitC, splitZ, splitT ) );
-						imgs.add( img );
-
-						count = 0;
-						planeCounters.add( count );
-					}
-					else
-					{
-						img = ( PlanarImg< DoubleType, DoubleArray > ) imgs.get( index );
-						count = planeCounters.get( index );
-					}
-
-					final double[] data = sequence.getDataXYAsDouble( t, z, c );
-					final DoubleArray plane = new DoubleArray( data );
-					img.setPlane( count++, plane );
-					planeCounters.set( index, count );
-				}
-			}
-		}
-		return imgs;
+		return wrapLazily( sequence, new DoubleType(), splitC, splitZ, splitT );
 	}
 
 	public static List< Img< FloatType > > wrapFloat( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
 	{
-		final List< Img< FloatType > > imgs = new ArrayList<>();
-		final List< Integer > planeCounters = new ArrayList<>();
+		return wrapLazily( sequence, new FloatType(), splitC, splitZ, splitT );
+	}
 
-		final int sizeC = sequence.getSizeC();
-		final int sizeZ = sequence.getSizeZ();
-		final int sizeT = sequence.getSizeT();
+	public static List< Img< IntType > > wrapInt( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
+	{
+		return wrapLazily( sequence, new IntType(), splitC, splitZ, splitT );
+	}
 
-		for ( int t = 0; t < sizeT; t++ )
-		{
-			for ( int z = 0; z < sizeZ; z++ )
-			{
-				for ( int c = 0; c < sizeC; c++ )
-				{
-					final int index = linearIndexFromCoordinate( c, z, t,
-							sizeC, sizeZ,
-							splitC, splitZ, splitT );
+	public static List< Img< LongType > > wrapLong( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
+	{
+		return wrapLazily( sequence, new LongType(), splitC, splitZ, splitT );
+	}
 
-					final PlanarImg< FloatType, FloatArray > img;
-					Integer count;
-					if ( index >= imgs.size() )
-					{
-						img = PlanarImgs.floats( getSqueezedDims( sequence, splitC, splitZ, splitT ) );
-						imgs.add( img );
+	public static List< Img< ShortType > > wrapShort( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
+	{
+		return wrapLazily( sequence, new ShortType(), splitC, splitZ, splitT );
+	}
 
-						count = 0;
-						planeCounters.add( count );
-					}
-					else
-					{
-						img = ( PlanarImg< FloatType, FloatArray > ) imgs.get( index );
-						count = planeCounters.get( index );
-					}
+	public static List< Img< UnsignedByteType > > wrapUnsignedByte( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
+	{
+		return wrapLazily( sequence, new UnsignedByteType(), splitC, splitZ, splitT );
+	}
 
-					final float[] data = sequence.getDataXYAsFloat( t, z, c );
-					final FloatArray plane = new FloatArray( data );
-					img.setPlane( count++, plane );
-					planeCounters.set( index, count );
-				}
-			}
-		}
-		return imgs;
+	public static List< Img< UnsignedIntType > > wrapUnsignedInt( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
+	{
+		return wrapLazily( sequence, new UnsignedIntType(), splitC, splitZ, splitT );
 	}
 
-	public static List< Img< IntType > > wrapInt( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
+	public static List< Img< UnsignedLongType > > wrapUnsignedLong( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
 	{
-		final List< Img< IntType > > imgs = new ArrayList<>();
-		final List< Integer > planeCounters = new ArrayList<>();
+		return wrapLazily( sequence, new UnsignedLongType(), splitC, splitZ, splitT );
+	}
 
-		final int sizeC = sequence.getSizeC();
-		final int sizeZ = sequence.getSizeZ();
-		final int sizeT = sequence.getSizeT();
+	public static List< Img< UnsignedShortType > > wrapUnsignedShort( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
+	{
+		return wrapLazily( sequence, new UnsignedShortType(), splitC, splitZ, splitT );
+	}
 
-		for ( int t = 0; t < sizeT; t++ )
+	/**
+	 * Splits the specified sequence along the specified dimensions, as views
+	 * over the image returned by {@link ImgLib2IcySequenceAdapter#wrap(Sequence)}.
+	 * <p>
+	 * The views are created when they are first requested from the returned
+	 * list, and share the pixels of the sequence. They are ordered like the
+	 * outputs of {@link #wrap(Sequence, boolean, boolean, boolean)}: C varying
+	 * fastest, then Z, then T. Their dimensions are given by
+	 * {@link #getDimensionArrangement(Sequence, boolean, boolean, boolean)},
+	 * except for {@link VirtualSequence}s, whose views are made over their
+	 * source, with its own dimension arrangement and type.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the sequence is a {@link VirtualSequence} over ARGB
+	 *             values, whose channels are not a dimension of the source.
+	 *             Use {@link #splitSequence(Sequence, boolean, boolean, boolean)}
+	 *             instead.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < T extends NumericType< T > & RealType< T > > List< RandomAccessibleInterval< T > > split( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
+	{
+		// The source of a virtual sequence can be any kind of image or view.
+		final RandomAccessibleInterval< T > img;
+		if ( sequence instanceof VirtualSequence )
+			img = ( RandomAccessibleInterval< T > ) Views.zeroMin( ( ( VirtualSequence ) sequence ).getSource() );
+		else
+			img = ImgLib2IcySequenceAdapter.wrapSource( sequence );
+		final Object type = img.getType();
+		if ( !( type instanceof RealType ) )
+			throw new IllegalArgumentException( "Cannot split a virtual sequence over " + type.getClass().getSimpleName()
+					+ " values as views, its channels are not a dimension of the source. Use splitSequence instead." );
+
+		// The dimensions of the wrapped image, the source for virtual sequences.
+		final DimensionArrangement arrangement = sequence instanceof VirtualSequence
+				? ( ( VirtualSequence ) sequence ).getArrangement()
+				: ImgLib2IcyFunctions.getDimensionArrangement( sequence );
+		final int dimC = arrangement.hasC() ? arrangement.dimC() : -1;
+		final int dimZ = arrangement.hasZ() ? arrangement.dimZ() : -1;
+		final int dimT = arrangement.hasT() ? arrangement.dimT() : -1;
+
+		final int nC = splitC && dimC >= 0 ? ( int ) img.dimension( dimC ) : 1;
+		final int nZ = splitZ && dimZ >= 0 ? ( int ) img.dimension( dimZ ) : 1;
+		final int nT = splitT && dimT >= 0 ? ( int ) img.dimension( dimT ) : 1;
+		final AtomicIntegerArray created = new AtomicIntegerArray( nC * nZ * nT );
+		return new AbstractList< RandomAccessibleInterval< T > >()
 		{
-			for ( int z = 0; z < sizeZ; z++ )
+			@Override
+			public RandomAccessibleInterval< T > get( final int index )
 			{
-				for ( int c = 0; c < sizeC; c++ )
-				{
-					final int index = linearIndexFromCoordinate( c, z, t,
-							sizeC, sizeZ,
-							splitC, splitZ, splitT );
-
-					final PlanarImg< IntType, IntArray > img;
-					Integer count;
-					if ( index >= imgs.size() )
-					{
-						img = PlanarImgs.ints( getSqueezedDims( sequence, splitC, splitZ, splitT ) );
-						imgs.add( img );
-
-						count = 0;
-						planeCounters.add( count );
-					}
-					else
-					{
-						img = ( PlanarImg< IntType, IntArray > ) imgs.get( index );
-						count = planeCounters.get( index );
-					}
+				if ( index < 0 || index >= size() )
+					throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + size() );
+
+				// Slice the last dimensions first, so that the others keep their index.
+				RandomAccessibleInterval< T > view = img;
+				if ( splitT && dimT >= 0 )
+					view = Views.hyperSlice( view, dimT, index / nC / nZ );
+				if ( splitZ && dimZ >= 0 )
+					view = Views.hyperSlice( view, dimZ, index / nC % nZ );
+				if ( splitC && dimC >= 0 )
+					view = Views.hyperSlice( view, dimC, index % nC );
+				// Views are cheap and not kept: count each output once.
+				if ( created.compareAndSet( index, 0, 1 ) && Metrics.collecting() )
+					Metrics.splitOutputCreated();
+				return view;
+			}
 
-					final int[] data = sequence.getDataXYAsInt( t, z, c );
-					final IntArray plane = new IntArray( data );
-					img.setPlane( count++, plane );
-					planeCounters.set( index, count );
-				}
+			@Override
+			public int size()
+			{
+				return nC * nZ * nT;
 			}
-		}
-		return imgs;
+		};
 	}
 
-	public static List< Img< ShortType > > wrapShort( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
+	/**
+	 * Splits the specified sequence along the specified dimensions, in new
+	 * sequences that share the pixel arrays of the specified sequence. The
+	 * sequences are ordered like the outputs of
+	 * {@link #wrap(Sequence, boolean, boolean, boolean)}.
+	 * <p>
+	 * The outputs of a {@link VirtualSequence} are virtual sequences over
+	 * views of its source, shown the same way. They are created when they are
+	 * first requested from the returned list, and project their planes when
+	 * they are displayed, so that splitting does not load the specified
+	 * sequence.
+	 */
+	public static List< Sequence > splitSequence( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
 	{
-		final List< Img< ShortType > > imgs = new ArrayList<>();
-		final List< Integer > planeCounters = new ArrayList<>();
+		if ( sequence instanceof VirtualSequence )
+			return splitVirtual( ( VirtualSequence ) sequence, splitC, splitZ, splitT );
 
+		final int sizeX = sequence.getSizeX();
+		final int sizeY = sequence.getSizeY();
 		final int sizeC = sequence.getSizeC();
 		final int sizeZ = sequence.getSizeZ();
 		final int sizeT = sequence.getSizeT();
+		final boolean signed = sequence.getDataType_().isSigned();
 
-		for ( int t = 0; t < sizeT; t++ )
+		final int nC = splitC ? sizeC : 1;
+		final int nZ = splitZ ? sizeZ : 1;
+		final int nT = splitT ? sizeT : 1;
+		final List< Sequence > sequences = new ArrayList<>( nC * nZ * nT );
+		for ( int index = 0; index < nC * nZ * nT; index++ )
 		{
-			for ( int z = 0; z < sizeZ; z++ )
+			final int c0 = splitC ? index % nC : 0;
+			final int z0 = splitZ ? index / nC % nZ : 0;
+			final int t0 = splitT ? index / nC / nZ : 0;
+			final int c1 = splitC ? c0 + 1 : sizeC;
+			final int z1 = splitZ ? z0 + 1 : sizeZ;
+			final int t1 = splitT ? t0 + 1 : sizeT;
+
+			final Sequence split = new Sequence();
+			copyMetadata( sequence, split, splitC, splitZ, splitT, c0, z0, t0 );
+			split.beginUpdate();
+			try
 			{
-				for ( int c = 0; c < sizeC; c++ )
+				for ( int t = t0; t < t1; t++ )
 				{
-					final int index = linearIndexFromCoordinate( c, z, t,
-							sizeC, sizeZ,
-							splitC, splitZ, splitT );
-
-					final PlanarImg< ShortType, ShortArray > img;
-					Integer count;
-					if ( index >= imgs.size() )
-					{
-						img = PlanarImgs.shorts( getSqueezedDims( sequence, splitC, splitZ, splitT ) );
-						imgs.add( img );
-
-						count = 0;
-						planeCounters.add( count );
-					}
-					else
+					for ( int z = z0; z < z1; z++ )
 					{
-						img = ( PlanarImg< ShortType, ShortArray > ) imgs.get( index );
-						count = planeCounters.get( index );
+						final Object[] data = new Object[ c1 - c0 ];
+						for ( int c = c0; c < c1; c++ )
+							data[ c - c0 ] = sequence.getDataXY( t, z, c );
+						split.setImage( t - t0, z - z0, new IcyBufferedImage( sizeX, sizeY, data, signed ) );
 					}
-
-					final short[] data = sequence.getDataXYAsShort( t, z, c );
-					final ShortArray plane = new ShortArray( data );
-					img.setPlane( count++, plane );
-					planeCounters.set( index, count );
 				}
 			}
+			finally
+			{
+				split.endUpdate();
+			}
+			sequences.add( split );
+			MemoryAccounting.registerShared( split, sequence, 1. / ( nC * nZ * nT ) );
+			if ( Metrics.collecting() )
+				Metrics.splitOutputCreated();
 		}
-		return imgs;
+		return sequences;
 	}
 
-	public static List< Img< UnsignedByteType > > wrapUnsignedByte( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
-	{
-		final List< Img< UnsignedByteType > > imgs = new ArrayList<>();
-		final List< Integer > planeCounters = new ArrayList<>();
-
-		final int sizeC = sequence.getSizeC();
-		final int sizeZ = sequence.getSizeZ();
-		final int sizeT = sequence.getSizeT();
+	/*
+	 * PRIVATE METHODS
+	 */
 
-		for ( int t = 0; t < sizeT; t++ )
+	/**
+	 * Returns a list of virtual sequences, one per output, over hyperslices
+	 * of the source of the specified virtual sequence. The channels of an ARGB
+	 * source are split by extracting each color component.
+	 */
+	private static List< Sequence > splitVirtual( final VirtualSequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
+	{
+		final RandomAccessibleInterval< ? > source = Views.zeroMin( sequence.getSource() );
+		final DimensionArrangement arrangement = sequence.getArrangement();
+		final boolean argb = source.getType() instanceof ARGBType;
+		final int nC = splitC ? sequence.getSizeC() : 1;
+		final int nZ = splitZ ? sequence.getSizeZ() : 1;
+		final int nT = splitT ? sequence.getSizeT() : 1;
+
+		final Sequence[] sequences = new Sequence[ nC * nZ * nT ];
+		return new AbstractList< Sequence >()
 		{
-			for ( int z = 0; z < sizeZ; z++ )
+			@Override
+			public synchronized Sequence get( final int index )
 			{
-				for ( int c = 0; c < sizeC; c++ )
+				if ( index < 0 || index >= sequences.length )
+					throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + sequences.length );
+				if ( sequences[ index ] == null )
 				{
-					final int index = linearIndexFromCoordinate( c, z, t,
-							sizeC, sizeZ,
-							splitC, splitZ, splitT );
-
-					final PlanarImg< UnsignedByteType, ByteArray > img;
-					Integer count;
-					if ( index >= imgs.size() )
-					{
-						img = PlanarImgs.unsignedBytes( getSqueezedDims( sequence, splitC, splitZ, splitT ) );
-						imgs.add( img );
-
-						count = 0;
-						planeCounters.add( count );
-					}
-					else
-					{
-						img = ( PlanarImg< UnsignedByteType, ByteArray > ) imgs.get( index );
-						count = planeCounters.get( index );
-					}
-
-					final byte[] data = sequence.getDataXYAsByte( t, z, c );
-					final ByteArray plane = new ByteArray( data );
-					img.setPlane( count++, plane );
-					planeCounters.set( index, count );
+					sequences[ index ] = create( index );
+					if ( Metrics.collecting() )
+						Metrics.splitOutputCreated();
 				}
+				return sequences[ index ];
 			}
-		}
-		return imgs;
-	}
-
-	public static List< Img< UnsignedIntType > > wrapUnsignedInt( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
-	{
-		final List< Img< UnsignedIntType > > imgs = new ArrayList<>();
-		final List< Integer > planeCounters = new ArrayList<>();
 
-		final int sizeC = sequence.getSizeC();
-		final int sizeZ = sequence.getSizeZ();
-		final int sizeT = sequence.getSizeT();
+			@Override
+			public int size()
+			{
+				return sequences.length;
+			}
 
-		for ( int t = 0; t < sizeT; t++ )
-		{
-			for ( int z = 0; z < sizeZ; z++ )
+			@SuppressWarnings( "unchecked" )
+			private Sequence create( final int index )
 			{
-				for ( int c = 0; c < sizeC; c++ )
+				final int c0 = splitC ? index % nC : 0;
+				final int z0 = splitZ ? index / nC % nZ : 0;
+				final int t0 = splitT ? index / nC / nZ : 0;
+
+				// Slice the last dimensions first, so that the others keep their index.
+				RandomAccessibleInterval< ? > view = source;
+				DimensionArrangement da = arrangement;
+				if ( splitT && da.hasT() )
 				{
-					final int index = linearIndexFromCoordinate( c, z, t,
-							sizeC, sizeZ,
-							splitC, splitZ, splitT );
-
-					final PlanarImg< UnsignedIntType, IntArray > img;
-					Integer count;
-					if ( index >= imgs.size() )
-					{
-						img = PlanarImgs.unsignedInts( getSqueezedDims( sequence, splitC, splitZ, splitT ) );
-						imgs.add( img );
-
-						count = 0;
-						planeCounters.add( count );
-					}
-					else
-					{
-						img = ( PlanarImg< UnsignedIntType, IntArray > ) imgs.get( index );
-						count = planeCounters.get( index );
-					}
-
-					final int[] data = sequence.getDataXYAsInt( t, z, c );
-					final IntArray plane = new IntArray( data );
-					img.setPlane( count++, plane );
-					planeCounters.set( index, count );
+					view = Views.hyperSlice( view, da.dimT(), t0 );
+					da = da.dropT();
+				}
+				if ( splitZ && da.hasZ() )
+				{
+					view = Views.hyperSlice( view, da.dimZ(), z0 );
+					da = da.dropZ();
 				}
+				if ( splitC && argb )
+				{
+					// Channels are red, green, blue then alpha; ARGB channels start with alpha.
+					view = Converters.argbChannel( ( RandomAccessibleInterval< ARGBType > ) view, c0 < 3 ? c0 + 1 : 0 );
+				}
+				else if ( splitC && da.hasC() )
+				{
+					view = Views.hyperSlice( view, da.dimC(), c0 );
+					da = da.dropC();
+				}
+
+				final VirtualSequence split = sequence.derive( view, da );
+				copyMetadata( sequence, split, splitC, splitZ, splitT, c0, z0, t0 );
+				return split;
 			}
-		}
-		return imgs;
+		};
 	}
 
-	public static List< Img< UnsignedShortType > > wrapUnsignedShort( final Sequence sequence, final boolean splitC, final boolean splitZ, final boolean splitT )
+	/**
+	 * Names the specified output after the specified sequence and its position
+	 * in it, and copies the calibration of the sequence.
+	 */
+	private static void copyMetadata( final Sequence sequence, final Sequence split, final boolean splitC, final boolean splitZ, final boolean splitT, final int c, final int z, final int t )
 	{
-		final List< Img< UnsignedShortType > > imgs = new ArrayList<>();
-		final List< Integer > planeCounters = new ArrayList<>();
+		String name = sequence.getName();
+		if ( splitC )
+			name += " - C=" + c;
+		if ( splitZ )
+			name += " - Z=" + z;
+		if ( splitT )
+			name += " - T=" + t;
+		split.setName( name );
+		split.setPixelSizeX( sequence.getPixelSizeX() );
+		split.setPixelSizeY( sequence.getPixelSizeY() );
+		split.setPixelSizeZ( sequence.getPixelSizeZ() );
+		split.setTimeInterval( sequence.getTimeInterval() );
+	}
 
+	/**
+	 * Returns a list of images, one per output, that share the planes of the
+	 * specified sequence. Each image is built when it is first requested from
+	 * the list, directly over the plane arrays.
+	 */
+	private static < T extends NativeType< T > > List< Img< T > > wrapLazily( final Sequence sequence, final T type, final boolean splitC, final boolean splitZ, final boolean splitT )
+	{
 		final int sizeC = sequence.getSizeC();
 		final int sizeZ = sequence.getSizeZ();
 		final int sizeT = sequence.getSizeT();
-
-		for ( int t = 0; t < sizeT; t++ )
+		final int nC = splitC ? sizeC : 1;
+		final int nZ = splitZ ? sizeZ : 1;
+		final int nT = splitT ? sizeT : 1;
+		final long[] dims = getSqueezedDims( sequence, splitC, splitZ, splitT );
+		final DataType dataType = ImgLib2IcyFunctions.getDataType( type );
+
+		final Object[] imgs = new Object[ nC * nZ * nT ];
+		return new AbstractList< Img< T > >()
 		{
-			for ( int z = 0; z < sizeZ; z++ )
+			@SuppressWarnings( "unchecked" )
+			@Override
+			public synchronized Img< T > get( final int index )
 			{
-				for ( int c = 0; c < sizeC; c++ )
+				if ( index < 0 || index >= imgs.length )
+					throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + imgs.length );
+				if ( imgs[ index ] == null )
 				{
-					final int index = linearIndexFromCoordinate( c, z, t,
-							sizeC, sizeZ,
-							splitC, splitZ, splitT );
-
-					final PlanarImg< UnsignedShortType, ShortArray > img;
-					Integer count;
-					if ( index >= imgs.size() )
-					{
-						img = PlanarImgs.unsignedShorts( getSqueezedDims( sequence, splitC, splitZ, splitT ) );
-						imgs.add( img );
+					imgs[ index ] = create( index );
+					if ( Metrics.collecting() )
+						Metrics.splitOutputCreated();
+				}
+				return ( Img< T > ) imgs[ index ];
+			}
 
-						count = 0;
-						planeCounters.add( count );
-					}
-					else
-					{
-						img = ( PlanarImg< UnsignedShortType, ShortArray > ) imgs.get( index );
-						count = planeCounters.get( index );
-					}
+			@Override
+			public int size()
+			{
+				return imgs.length;
+			}
 
-					final short[] data = sequence.getDataXYAsShort( t, z, c );
-					final ShortArray plane = new ShortArray( data );
-					img.setPlane( count++, plane );
-					planeCounters.set( index, count );
-				}
+			@SuppressWarnings( { "unchecked", "rawtypes" } )
+			private Img< T > create( final int index )
+			{
+				final int c0 = splitC ? index % nC : 0;
+				final int z0 = splitZ ? index / nC % nZ : 0;
+				final int t0 = splitT ? index / nC / nZ : 0;
+				final int c1 = splitC ? c0 + 1 : sizeC;
+				final int z1 = splitZ ? z0 + 1 : sizeZ;
+				final int t1 = splitT ? t0 + 1 : sizeT;
+
+				final List< ArrayDataAccess< ? > > planes = new ArrayList<>( ( c1 - c0 ) * ( z1 - z0 ) * ( t1 - t0 ) );
+				for ( int t = t0; t < t1; t++ )
+					for ( int z = z0; z < z1; z++ )
+						for ( int c = c0; c < c1; c++ )
+							planes.add( DirectPlanes.access( getPlane( sequence, dataType, t, z, c ) ) );
+
+				final PlanarImg img = new PlanarImg( planes, dims, new Fraction() );
+				img.setLinkedType( type.getNativeTypeFactory().createLinkedType( img ) );
+				MemoryAccounting.registerShared( img, sequence, 1. / imgs.length );
+				return img;
 			}
-		}
-		return imgs;
+		};
 	}
 
-	private ImgLib2IcySplitSequenceAdapter()
-	{}
+	/**
+	 * Returns the plane of the sequence at the specified position, as an
+	 * array of the primitive type that stores the specified data type.
+	 */
+	private static Object getPlane( final Sequence sequence, final DataType dataType, final int t, final int z, final int c )
+	{
+		switch ( dataType )
+		{
+		case BYTE:
+		case UBYTE:
+			return sequence.getDataXYAsByte( t, z, c );
+		case SHORT:
+		case USHORT:
+			return sequence.getDataXYAsShort( t, z, c );
+		case INT:
+		case UINT:
+			return sequence.getDataXYAsInt( t, z, c );
+		case LONG:
+		case ULONG:
+			return sequence.getDataXY( t, z, c );
+		case FLOAT:
+			return sequence.getDataXYAsFloat( t, z, c );
+		case DOUBLE:
+			return sequence.getDataXYAsDouble( t, z, c );
+		default:
+			throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
 }
@@ -4,12 +4,10 @@ import java.util.List;
 
 import icy.gui.dialog.MessageDialog;
 import icy.sequence.Sequence;
-import net.imglib2.img.Img;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import plugins.adufour.ezplug.EzPlug;
 import plugins.adufour.ezplug.EzVarBoolean;
-import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
 
 public class ImgLib2SequenceSplitter< T extends NumericType< T > & RealType< T > > extends EzPlug
 {
@@ -42,14 +40,10 @@ public class ImgLib2SequenceSplitter< T extends NumericType< T > & RealType< T >
 		final boolean splitZ = splitZUI.getValue( true );
 		final boolean splitT = splitTUI.getValue( true );
 
-		final List< Img< T > > imgs = ImgLib2IcySplitSequenceAdapter.wrap( sequence, splitC, splitZ, splitT );
-		final DimensionArrangement dim = ImgLib2IcySplitSequenceAdapter.getDimensionArrangement( sequence, splitC, splitZ, splitT );
-
-		for ( final Img< T > img : imgs )
-		{
-			final Sequence seq = ImgLib2IcyFunctions.wrap( img, dim );
+		// The outputs share the pixel arrays of the sequence, or for a virtual sequence its source: no copy.
+		final List< Sequence > sequences = ImgLib2IcySplitSequenceAdapter.splitSequence( sequence, splitC, splitZ, splitT );
+		for ( final Sequence seq : sequences )
 			addSequence( seq );
-		}
 	}
 
 	@Override
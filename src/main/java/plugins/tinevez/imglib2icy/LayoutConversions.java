@@ -0,0 +1,260 @@
+package plugins.tinevez.imglib2icy;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.TypeIdentity;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copies Icy sequences into ImgLib2 images with a memory layout suited to
+ * neighbourhood and multichannel operations, and back.
+ * <p>
+ * Icy stores each XY plane in its own array, so that moving along Z or C
+ * jumps to another array. The {@link CellImg} layout stores cubic blocks of
+ * X, Y and Z together, and the interleaved {@link ArrayImg} layout stores
+ * the channels of a pixel next to each other.
+ * <p>
+ * The copies are done plane by plane, in parallel, by a
+ * {@link ProjectionEngine}.
+ */
+public final class LayoutConversions
+{
+
+	/**
+	 * The default edge length of the cubic cells.
+	 */
+	public static final int DEFAULT_CELL_SIZE = 32;
+
+	private static final ProjectionEngine ENGINE = new ProjectionEngine();
+
+	/*
+	 * METHODS
+	 */
+
+	public static < T extends NativeType< T > & RealType< T > > CellImg< T, ? > toCellImg( final Sequence sequence )
+	{
+		return toCellImg( sequence, DEFAULT_CELL_SIZE );
+	}
+
+	/**
+	 * Copies the specified sequence into a new {@link CellImg} with the same
+	 * dimensions as the image returned by
+	 * {@link ImgLib2IcySequenceAdapter#wrap(Sequence)}: X, Y, C, Z, T with
+	 * singleton dimensions squeezed. Cells span <code>cellSize</code> pixels
+	 * along X, Y and Z, and 1 along C and T.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the sequence is a {@link VirtualSequence} whose source
+	 *             does not have these dimensions and the data type of the
+	 *             sequence.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < T extends NativeType< T > & RealType< T > > CellImg< T, ? > toCellImg( final Sequence sequence, final int cellSize )
+	{
+		final RandomAccessibleInterval< T > planar = planar( sequence );
+		final long[] dims = Intervals.dimensionsAsLongArray( planar );
+
+		// X and Y are always there. Z, when present, is after C if C is present.
+		final int[] cellDims = new int[ dims.length ];
+		for ( int d = 0; d < dims.length; d++ )
+			cellDims[ d ] = 1;
+		cellDims[ 0 ] = cellSize;
+		cellDims[ 1 ] = cellSize;
+		if ( sequence.getSizeZ() > 1 )
+			cellDims[ sequence.getSizeC() > 1 ? 3 : 2 ] = cellSize;
+
+		final T type = ( T ) ImgLib2IcyFunctions.getType( sequence.getDataType_() );
+		final CellImg< T, ? > img = new CellImgFactory<>( type, cellDims ).create( dims );
+		copyPlanes( planar, img );
+		MemoryAccounting.registerOwned( img, MemoryAccounting.bytesOf( sequence ) );
+		return img;
+	}
+
+	/**
+	 * Copies the specified sequence into a new {@link ArrayImg} in which the
+	 * channels are interleaved. The dimensions are C, X, Y, Z, T with
+	 * singleton dimensions squeezed.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the sequence is a {@link VirtualSequence} whose source
+	 *             does not have the dimensions X, Y, C, Z, T squeezed and the
+	 *             data type of the sequence.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < T extends NativeType< T > & RealType< T > > ArrayImg< T, ? > toInterleaved( final Sequence sequence )
+	{
+		final RandomAccessibleInterval< T > planar = planar( sequence );
+		final long[] dims = Intervals.dimensionsAsLongArray( planar );
+		final boolean hasC = sequence.getSizeC() > 1;
+		if ( hasC )
+		{
+			// C first.
+			final long sizeC = dims[ 2 ];
+			dims[ 2 ] = dims[ 1 ];
+			dims[ 1 ] = dims[ 0 ];
+			dims[ 0 ] = sizeC;
+		}
+
+		final T type = ( T ) ImgLib2IcyFunctions.getType( sequence.getDataType_() );
+		final ArrayImg< T, ? > img = new ArrayImgFactory<>( type ).create( dims );
+		copyPlanes( planar, hasC ? Views.moveAxis( img, 0, 2 ) : img );
+		MemoryAccounting.registerOwned( img, MemoryAccounting.bytesOf( sequence ) );
+		return img;
+	}
+
+	/**
+	 * Copies the content of an image made by {@link #toCellImg(Sequence, int)},
+	 * or of any image with the same dimensions, back into the specified
+	 * sequence. For a {@link VirtualSequence}, the content is written to its
+	 * source, and the planes it projected so far are invalidated.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the sequence is a {@link VirtualSequence} whose source
+	 *             does not have the dimensions X, Y, C, Z, T squeezed and the
+	 *             data type of the sequence.
+	 */
+	public static < T extends NativeType< T > & RealType< T > > void writeBack( final RandomAccessibleInterval< T > img, final Sequence sequence )
+	{
+		final RandomAccessibleInterval< T > planar = planar( sequence );
+		if ( !Intervals.equalDimensions( img, planar ) )
+			throw new IllegalArgumentException( "The image and the sequence do not have the same dimensions." );
+		if ( sequence instanceof VirtualSequence )
+		{
+			// Dirty planes first, so that they do not overwrite the new content later.
+			( ( VirtualSequence ) sequence ).flush();
+			copyPlanes( img, planar );
+			( ( VirtualSequence ) sequence ).invalidate();
+		}
+		else
+		{
+			copyPlanes( img, planar );
+		}
+		sequence.dataChanged();
+	}
+
+	/**
+	 * Copies the content of an image made by {@link #toInterleaved(Sequence)}
+	 * back into the specified sequence.
+	 */
+	public static < T extends NativeType< T > & RealType< T > > void writeBackInterleaved( final RandomAccessibleInterval< T > img, final Sequence sequence )
+	{
+		writeBack( sequence.getSizeC() > 1 ? Views.moveAxis( img, 0, 2 ) : img, sequence );
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Returns the image returned by
+	 * {@link ImgLib2IcySequenceAdapter#wrap(Sequence)}, or for a
+	 * {@link VirtualSequence} its source with singleton dimensions squeezed,
+	 * after checking that the source has the dimensions X, Y, C, Z, T with
+	 * singleton dimensions squeezed, and the data type of the sequence.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the source of a {@link VirtualSequence} does not match its
+	 *             planes, for instance because its values are converted for
+	 *             display.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static < T extends NativeType< T > & RealType< T > > RandomAccessibleInterval< T > planar( final Sequence sequence )
+	{
+		if ( !( sequence instanceof VirtualSequence ) )
+			return ImgLib2IcySequenceAdapter.wrapSource( sequence );
+
+		// Any kind of source, not only images.
+		RandomAccessibleInterval< ? > source = ( ( VirtualSequence ) sequence ).getSource();
+		for ( int d = source.numDimensions() - 1; d >= 2; d-- )
+		{
+			if ( source.dimension( d ) == 1 )
+				source = Views.hyperSlice( source, d, source.min( d ) );
+		}
+
+		final long[] sizes = new long[] { sequence.getSizeX(), sequence.getSizeY(), sequence.getSizeC(), sequence.getSizeZ(), sequence.getSizeT() };
+		final long[] dims = new long[ sizes.length ];
+		int n = 0;
+		for ( int i = 0; i < sizes.length; i++ )
+		{
+			if ( sizes[ i ] > 1 )
+				dims[ n++ ] = sizes[ i ];
+		}
+		final long[] expected = Arrays.copyOf( dims, n );
+		final long[] actual = Intervals.dimensionsAsLongArray( source );
+		final Object type = source.getType();
+		final DataType dataType = type instanceof RealType ? ImgLib2IcyFunctions.getDataType( ( RealType< ? > ) type ) : null;
+		if ( !Arrays.equals( expected, actual ) || dataType != sequence.getDataType_() )
+			throw new IllegalArgumentException( "The source of the virtual sequence, of dimensions " + Arrays.toString( actual ) + " and type "
+					+ type.getClass().getSimpleName() + ", does not match the planes of the sequence, of dimensions "
+					+ Arrays.toString( expected ) + " and type " + sequence.getDataType_() + ". Materialize the sequence first." );
+		return ( RandomAccessibleInterval< T > ) source;
+	}
+
+	@SuppressWarnings( "rawtypes" )
+	private static void copyPlanes( final RandomAccessibleInterval< ? > source, final RandomAccessibleInterval< ? > target )
+	{
+		copyPlanes( source, target, new TypeIdentity() );
+	}
+
+	/**
+	 * Copies the source into the target through the specified converter, one
+	 * XY plane per task. The source and target must have the same dimensions.
+	 */
+	static void copyPlanes( final RandomAccessibleInterval< ? > source, final RandomAccessibleInterval< ? > target, final Converter< ?, ? > converter )
+	{
+		final List< RandomAccessibleInterval< ? > > sources = planes( Views.zeroMin( source ) );
+		final List< RandomAccessibleInterval< ? > > targets = planes( Views.zeroMin( target ) );
+		ENGINE.project( sources.toArray( new RandomAccessibleInterval[ 0 ] ), targets.toArray( new RandomAccessibleInterval[ 0 ] ), converter, true );
+	}
+
+	/**
+	 * Returns the XY planes of the specified zero-min image, the dimension 2
+	 * varying fastest.
+	 */
+	private static List< RandomAccessibleInterval< ? > > planes( final RandomAccessibleInterval< ? > rai )
+	{
+		final int n = rai.numDimensions();
+		long nPlanes = 1;
+		for ( int d = 2; d < n; d++ )
+			nPlanes *= rai.dimension( d );
+
+		final List< RandomAccessibleInterval< ? > > planes = new ArrayList<>( ( int ) nPlanes );
+		for ( long i = 0; i < nPlanes; i++ )
+		{
+			final long[] position = new long[ n ];
+			long index = i;
+			for ( int d = 2; d < n; d++ )
+			{
+				position[ d ] = index % rai.dimension( d );
+				index /= rai.dimension( d );
+			}
+			planes.add( slice( rai, position ) );
+		}
+		return planes;
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static RandomAccessibleInterval< ? > slice( final RandomAccessibleInterval rai, final long[] position )
+	{
+		RandomAccessibleInterval view = rai;
+		for ( int d = rai.numDimensions() - 1; d >= 2; d-- )
+			view = Views.hyperSlice( view, d, position[ d ] );
+		return view;
+	}
+
+	private LayoutConversions()
+	{}
+}
@@ -0,0 +1,582 @@
+package plugins.tinevez.imglib2icy;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.sequence.SequenceEvent;
+import icy.sequence.SequenceEvent.SequenceEventSourceType;
+import icy.sequence.SequenceEvent.SequenceEventType;
+import icy.sequence.SequenceListener;
+import icy.type.DataType;
+import net.imglib2.AbstractLocalizable;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Fraction;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Wraps an Icy sequence in an image that follows the changes of the sequence.
+ * <p>
+ * The image shares the plane arrays of the sequence, like
+ * {@link ImgLib2IcySequenceAdapter#wrap(Sequence)}. Its dimensions are X, Y,
+ * C, Z with singleton dimensions squeezed, then T, which is always present so
+ * that the image can grow in T. When an image of the sequence is added or
+ * replaced, only its planes are swapped in the wrapped image. When time points
+ * are added or removed, the extent of the wrapped image along T changes in
+ * place, and only the planes of the new time points are wrapped: appending a
+ * frame does not depend on the number of frames already there. Other
+ * dimension or type changes rebuild the wrapped image from scratch, and
+ * {@link #getImg()} must then be called again.
+ * <p>
+ * Views made over the wrapped image keep the extent it had when they were
+ * made.
+ */
+public class LiveSequenceImg< T extends NativeType< T > & RealType< T > >
+{
+
+	private static final MemoryAccounting.Accountant ACCOUNTANT = new MemoryAccounting.Accountant()
+	{
+		@Override
+		public MemoryAccounting.Usage usage( final Object object )
+		{
+			final Sequence sequence = ( ( LiveSequenceImg< ? > ) object ).getSequence();
+			return new MemoryAccounting.Usage( 0, MemoryAccounting.bytesOf( sequence ), 0, sequence );
+		}
+	};
+
+	private final Sequence sequence;
+
+	private final SequenceListener listener;
+
+	private volatile Planes< T > img;
+
+	/**
+	 * The (t, z) position of the images whose planes are shared, to find an
+	 * image from its events without scanning the sequence.
+	 */
+	private final Map< IcyBufferedImage, Long > positions = new WeakHashMap<>();
+
+	/**
+	 * The positions whose image was removed. When an image is replaced, it
+	 * is removed, then the new image is added at the same position.
+	 */
+	private final ArrayDeque< Long > vacated = new ArrayDeque<>();
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	public LiveSequenceImg( final Sequence sequence )
+	{
+		this.sequence = sequence;
+		rebuild();
+		this.listener = new SequenceListener()
+		{
+			@Override
+			public void sequenceChanged( final SequenceEvent sequenceEvent )
+			{
+				final SequenceEventSourceType sourceType = sequenceEvent.getSourceType();
+				if ( sourceType != SequenceEventSourceType.SEQUENCE_DATA && sourceType != SequenceEventSourceType.SEQUENCE_TYPE )
+					return;
+				update( sequenceEvent.getSource(), sequenceEvent.getType() );
+			}
+
+			@Override
+			public void sequenceClosed( final Sequence sequence )
+			{
+				dispose();
+			}
+		};
+		sequence.addListener( listener );
+		MemoryAccounting.register( this, ACCOUNTANT );
+		if ( Metrics.collecting() )
+			Metrics.wrapped( "live", sequence );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Returns the current wrapped image. It stays the same when the sequence
+	 * grows or shrinks in T.
+	 */
+	public RandomAccessibleInterval< T > getImg()
+	{
+		return img;
+	}
+
+	public Sequence getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * Stops following the changes of the sequence. The current wrapped image
+	 * still shares the planes of the sequence.
+	 */
+	public void dispose()
+	{
+		sequence.removeListener( listener );
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private synchronized void update( final Object source, final SequenceEventType type )
+	{
+		final Planes< T > current = img;
+		if ( sequence.getSizeX() != current.sizeX || sequence.getSizeY() != current.sizeY || sequence.getSizeC() != current.sizeC
+				|| sequence.getSizeZ() != current.sizeZ || sequence.getDataType_() != current.dataType )
+		{
+			rebuild();
+			return;
+		}
+
+		if ( sequence.getSizeT() != current.sizeT )
+			resizeT( current, sequence.getSizeT() );
+
+		if ( !( source instanceof IcyBufferedImage ) )
+		{
+			// Unknown source: re-share all the plane arrays.
+			for ( int t = 0; t < current.sizeT; t++ )
+				for ( int z = 0; z < current.sizeZ; z++ )
+					share( current, t, z );
+			return;
+		}
+
+		final IcyBufferedImage image = ( IcyBufferedImage ) source;
+		if ( type == SequenceEventType.REMOVED )
+		{
+			final Long position = positions.remove( image );
+			if ( position != null )
+				vacated.add( position );
+			return;
+		}
+
+		// A known image whose content changed.
+		final Long position = positions.get( image );
+		if ( position != null )
+		{
+			share( current, ( int ) ( position.longValue() / current.sizeZ ), ( int ) ( position.longValue() % current.sizeZ ) );
+			return;
+		}
+
+		// A new image: where an image was removed, or in the last time point.
+		final Iterator< Long > it = vacated.iterator();
+		while ( it.hasNext() )
+		{
+			final long p = it.next().longValue();
+			final int t = ( int ) ( p / current.sizeZ );
+			final int z = ( int ) ( p % current.sizeZ );
+			if ( t < current.sizeT && sequence.getImage( t, z ) == image )
+			{
+				it.remove();
+				share( current, t, z );
+				return;
+			}
+		}
+		for ( int z = 0; z < current.sizeZ && current.sizeT > 0; z++ )
+		{
+			if ( sequence.getImage( current.sizeT - 1, z ) == image )
+			{
+				share( current, current.sizeT - 1, z );
+				return;
+			}
+		}
+
+		// Elsewhere: rare, look for it.
+		for ( int t = 0; t < current.sizeT; t++ )
+		{
+			for ( int z = 0; z < current.sizeZ; z++ )
+			{
+				if ( sequence.getImage( t, z ) == image )
+				{
+					share( current, t, z );
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Changes the extent of the wrapped image along T. The planes of the new
+	 * time points are wrapped before they become visible.
+	 */
+	private void resizeT( final Planes< T > target, final int newSizeT )
+	{
+		final int oldSizeT = target.sizeT;
+		if ( newSizeT > oldSizeT )
+		{
+			target.ensureCapacity( newSizeT );
+			for ( int t = oldSizeT; t < newSizeT; t++ )
+				for ( int z = 0; z < target.sizeZ; z++ )
+					share( target, t, z );
+			target.sizeT = newSizeT;
+		}
+		else
+		{
+			target.sizeT = newSizeT;
+			for ( int i = newSizeT * target.sizeZ * target.sizeC; i < oldSizeT * target.sizeZ * target.sizeC; i++ )
+				target.setPlane( i, null );
+		}
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private void rebuild()
+	{
+		positions.clear();
+		vacated.clear();
+		final T type = ( T ) ImgLib2IcyFunctions.getType( sequence.getDataType_() );
+		final Planes< T > newImg = new Planes<>( sequence, type );
+		newImg.ensureCapacity( sequence.getSizeT() );
+		for ( int t = 0; t < sequence.getSizeT(); t++ )
+			for ( int z = 0; z < newImg.sizeZ; z++ )
+				share( newImg, t, z );
+		newImg.sizeT = sequence.getSizeT();
+		img = newImg;
+	}
+
+	/**
+	 * Shares the plane arrays of the sequence image at (t, z) in the specified
+	 * wrapped image.
+	 */
+	private void share( final Planes< T > target, final int t, final int z )
+	{
+		final IcyBufferedImage image = sequence.getImage( t, z );
+		if ( image == null )
+			return;
+		positions.put( image, Long.valueOf( ( long ) t * target.sizeZ + z ) );
+		final int offset = ( t * target.sizeZ + z ) * target.sizeC;
+		for ( int c = 0; c < target.sizeC; c++ )
+			target.setPlane( offset + c, DirectPlanes.access( image.getDataXY( c ) ) );
+	}
+
+	/*
+	 * WRAPPED IMAGE
+	 */
+
+	/**
+	 * An image over a growable list of XY planes, whose extent along T, its
+	 * last dimension, is read live. Planes are stored C varying fastest, then
+	 * Z, then T, and are only written by the thread that updates the wrapper.
+	 */
+	private static final class Planes< T extends NativeType< T > > implements RandomAccessibleInterval< T >
+	{
+		private final T type;
+
+		private final DataType dataType;
+
+		private final int sizeX;
+
+		private final int sizeY;
+
+		private final int sizeC;
+
+		private final int sizeZ;
+
+		/**
+		 * Index of the C and Z dimensions, -1 if squeezed.
+		 */
+		private final int dimC;
+
+		private final int dimZ;
+
+		private final int dimT;
+
+		private volatile int sizeT;
+
+		/**
+		 * Grown by doubling, so that appending planes is amortized constant
+		 * time.
+		 */
+		private volatile AtomicReferenceArray< ArrayImg< T, ? > > planes = new AtomicReferenceArray<>( 0 );
+
+		private Planes( final Sequence sequence, final T type )
+		{
+			this.type = type;
+			this.dataType = sequence.getDataType_();
+			this.sizeX = sequence.getSizeX();
+			this.sizeY = sequence.getSizeY();
+			this.sizeC = sequence.getSizeC();
+			this.sizeZ = sequence.getSizeZ();
+			int d = 2;
+			this.dimC = sizeC > 1 ? d++ : -1;
+			this.dimZ = sizeZ > 1 ? d++ : -1;
+			this.dimT = d;
+		}
+
+		private void ensureCapacity( final int sizeT )
+		{
+			final AtomicReferenceArray< ArrayImg< T, ? > > current = planes;
+			final int needed = sizeT * sizeZ * sizeC;
+			if ( needed <= current.length() )
+				return;
+			final AtomicReferenceArray< ArrayImg< T, ? > > grown = new AtomicReferenceArray<>( Math.max( needed, 2 * current.length() ) );
+			for ( int i = 0; i < current.length(); i++ )
+				grown.set( i, current.get( i ) );
+			planes = grown;
+		}
+
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		private void setPlane( final int index, final ArrayDataAccess< ? > access )
+		{
+			if ( access == null )
+			{
+				planes.set( index, null );
+				return;
+			}
+			final ArrayImg plane = new ArrayImg( access, new long[] { sizeX, sizeY }, new Fraction() );
+			plane.setLinkedType( type.getNativeTypeFactory().createLinkedType( plane ) );
+			planes.set( index, plane );
+		}
+
+		private int planeIndex( final long[] position )
+		{
+			final long c = dimC < 0 ? 0 : position[ dimC ];
+			final long z = dimZ < 0 ? 0 : position[ dimZ ];
+			return ( int ) ( ( position[ dimT ] * sizeZ + z ) * sizeC + c );
+		}
+
+		private ArrayImg< T, ? > plane( final int index )
+		{
+			return planes.get( index );
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return dimT + 1;
+		}
+
+		@Override
+		public long min( final int d )
+		{
+			return 0;
+		}
+
+		@Override
+		public long max( final int d )
+		{
+			if ( d == 0 )
+				return sizeX - 1;
+			if ( d == 1 )
+				return sizeY - 1;
+			if ( d == dimC )
+				return sizeC - 1;
+			if ( d == dimZ )
+				return sizeZ - 1;
+			return sizeT - 1;
+		}
+
+		@Override
+		public RandomAccess< T > randomAccess()
+		{
+			return new PlanesRandomAccess<>( this );
+		}
+
+		@Override
+		public RandomAccess< T > randomAccess( final Interval interval )
+		{
+			return randomAccess();
+		}
+
+		@Override
+		public T getType()
+		{
+			return type.createVariable();
+		}
+	}
+
+	/**
+	 * Accesses the plane at the current C, Z and T position through its own
+	 * random access. The random accesses of the planes visited are kept, and
+	 * created again only when the sequence replaced the plane, so that moving
+	 * along C, Z or T does not allocate. Moves along X and Y are forwarded to
+	 * the random access of the current plane.
+	 */
+	private static final class PlanesRandomAccess< T extends NativeType< T > > extends AbstractLocalizable implements RandomAccess< T >
+	{
+		private final Planes< T > img;
+
+		/**
+		 * The random accesses of the planes visited, by plane index, and the
+		 * planes they were created over.
+		 */
+		private RandomAccess< T >[] accesses;
+
+		private ArrayImg< T, ? >[] sources;
+
+		private RandomAccess< T > plane;
+
+		/**
+		 * Whether the position changed along C, Z or T, or along X and Y in
+		 * bulk, since the current plane was looked up.
+		 */
+		private boolean moved = true;
+
+		@SuppressWarnings( "unchecked" )
+		private PlanesRandomAccess( final Planes< T > img, final long[] position )
+		{
+			super( position );
+			this.img = img;
+			this.accesses = new RandomAccess[ 0 ];
+			this.sources = new ArrayImg[ 0 ];
+		}
+
+		private PlanesRandomAccess( final Planes< T > img )
+		{
+			this( img, new long[ img.numDimensions() ] );
+		}
+
+		@Override
+		public T get()
+		{
+			if ( moved )
+			{
+				plane = access( img.planeIndex( position ) );
+				plane.setPosition( position[ 0 ], 0 );
+				plane.setPosition( position[ 1 ], 1 );
+				moved = false;
+			}
+			return plane.get();
+		}
+
+		@Override
+		public PlanesRandomAccess< T > copy()
+		{
+			return new PlanesRandomAccess<>( img, position.clone() );
+		}
+
+		@Override
+		public void fwd( final int d )
+		{
+			++position[ d ];
+			if ( d > 1 )
+				moved = true;
+			else if ( !moved )
+				plane.fwd( d );
+		}
+
+		@Override
+		public void bck( final int d )
+		{
+			--position[ d ];
+			if ( d > 1 )
+				moved = true;
+			else if ( !moved )
+				plane.bck( d );
+		}
+
+		@Override
+		public void move( final int distance, final int d )
+		{
+			move( ( long ) distance, d );
+		}
+
+		@Override
+		public void move( final long distance, final int d )
+		{
+			position[ d ] += distance;
+			if ( d > 1 )
+				moved = true;
+			else if ( !moved )
+				plane.move( distance, d );
+		}
+
+		@Override
+		public void move( final Localizable distance )
+		{
+			for ( int d = 0; d < n; d++ )
+				position[ d ] += distance.getLongPosition( d );
+			moved = true;
+		}
+
+		@Override
+		public void move( final int[] distance )
+		{
+			for ( int d = 0; d < n; d++ )
+				position[ d ] += distance[ d ];
+			moved = true;
+		}
+
+		@Override
+		public void move( final long[] distance )
+		{
+			for ( int d = 0; d < n; d++ )
+				position[ d ] += distance[ d ];
+			moved = true;
+		}
+
+		@Override
+		public void setPosition( final Localizable position )
+		{
+			position.localize( this.position );
+			moved = true;
+		}
+
+		@Override
+		public void setPosition( final int[] position )
+		{
+			for ( int d = 0; d < n; d++ )
+				this.position[ d ] = position[ d ];
+			moved = true;
+		}
+
+		@Override
+		public void setPosition( final long[] position )
+		{
+			System.arraycopy( position, 0, this.position, 0, n );
+			moved = true;
+		}
+
+		@Override
+		public void setPosition( final int position, final int d )
+		{
+			setPosition( ( long ) position, d );
+		}
+
+		@Override
+		public void setPosition( final long position, final int d )
+		{
+			this.position[ d ] = position;
+			if ( d > 1 )
+				moved = true;
+			else if ( !moved )
+				plane.setPosition( position, d );
+		}
+
+		/**
+		 * Returns the random access of the plane at the specified index,
+		 * created over the current plane of the sequence at this index.
+		 */
+		private RandomAccess< T > access( final int index )
+		{
+			if ( index >= accesses.length )
+			{
+				final int length = Math.max( index + 1, 2 * accesses.length );
+				accesses = Arrays.copyOf( accesses, length );
+				sources = Arrays.copyOf( sources, length );
+			}
+			final ArrayImg< T, ? > source = img.plane( index );
+			if ( sources[ index ] != source )
+			{
+				sources[ index ] = source;
+				accesses[ index ] = source.randomAccess();
+			}
+			return accesses[ index ];
+		}
+	}
+}
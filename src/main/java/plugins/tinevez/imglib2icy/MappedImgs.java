@@ -0,0 +1,196 @@
+package plugins.tinevez.imglib2icy;
+
+import icy.type.DataType;
+import net.imglib2.img.basictypeaccess.nio.ByteBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.DoubleBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.FloatBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.IntBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.LongBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.ShortBufferAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates {@link PlanarImg}s backed by memory-mapped raw files.
+ * <p>
+ * The files store the pixel values without header, or after a header of known
+ * size, X varying fastest, then Y, then the other dimensions in order, which
+ * is the order of the planes of a {@link PlanarImg}. The file is mapped in
+ * {@link MappedByteBuffer}s of up to 2 GB each, holding whole planes, and each
+ * plane is a slice of its region. Files can therefore be much larger than the
+ * heap and than the 2 GB limit of a single mapping, as long as a plane fits
+ * in 2 GB, and a 100 GB file only takes about 50 mappings of the limited
+ * number a process can have. Pixels are read and written through the
+ * operating system page cache, without copy in the heap.
+ * <p>
+ * The images can be shown in Icy with
+ * {@link ImgLib2IcyFunctions#wrap(net.imglib2.RandomAccessibleInterval, VirtualSequence.DimensionArrangement)}:
+ * the {@link VirtualSequence} copies the planes it displays from the mapped
+ * buffers in bulk. When the file is mapped read-write, the modifications are
+ * written back to the file if write-back is enabled on the sequence.
+ * Write-back cannot be enabled over the read-only images returned by
+ * {@link #open(Path, NativeType, ByteOrder, long...)}.
+ * {@link ImgLib2IcySequenceAdapter#wrap(icy.sequence.Sequence)} called on
+ * such a sequence returns the mapped image itself.
+ * <p>
+ * The mappings stay valid after the file is closed, and are released when the
+ * image is garbage-collected.
+ */
+public final class MappedImgs
+{
+
+	/**
+	 * The maximal size of one mapping.
+	 */
+	private static final long MAX_REGION_BYTES = Integer.MAX_VALUE;
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Maps an existing raw file read-only. Writing to the returned image
+	 * throws a {@link java.nio.ReadOnlyBufferException}, and
+	 * {@link VirtualSequence#setWriteBack(boolean)} rejects sequences over it.
+	 * Use {@link #map(Path, long, NativeType, ByteOrder, MapMode, long...)}
+	 * in read-write mode to modify the file.
+	 */
+	public static < T extends NativeType< T > & RealType< T > > PlanarImg< T, ? > open( final Path file, final T type, final ByteOrder order, final long... dims ) throws IOException
+	{
+		return map( file, 0, type, order, MapMode.READ_ONLY, dims );
+	}
+
+	/**
+	 * Creates a raw file of the size required by the specified dimensions, or
+	 * extends an existing one, and maps it read-write.
+	 */
+	public static < T extends NativeType< T > & RealType< T > > PlanarImg< T, ? > create( final Path file, final T type, final ByteOrder order, final long... dims ) throws IOException
+	{
+		return map( file, 0, type, order, MapMode.READ_WRITE, dims );
+	}
+
+	/**
+	 * Maps a raw file in a {@link PlanarImg}.
+	 *
+	 * @param file
+	 *            the file to map.
+	 * @param offset
+	 *            the size of the header of the file, in bytes.
+	 * @param type
+	 *            the pixel type.
+	 * @param order
+	 *            the byte order of the values in the file.
+	 * @param mode
+	 *            {@link MapMode#READ_ONLY} or {@link MapMode#READ_WRITE}. In
+	 *            read-write mode, the file is created or extended if needed,
+	 *            and modifications of the image are written to the file.
+	 * @param dims
+	 *            the image dimensions, at least X and Y.
+	 * @return a new image.
+	 * @throws IOException
+	 *             if the file cannot be mapped, or is too small in read-only
+	 *             mode.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static < T extends NativeType< T > & RealType< T > > PlanarImg< T, ? > map( final Path file, final long offset, final T type, final ByteOrder order, final MapMode mode, final long... dims ) throws IOException
+	{
+		if ( dims.length < 2 )
+			throw new IllegalArgumentException( "Mapped images must have at least 2 dimensions, got " + dims.length + "." );
+		final DataType dataType = ImgLib2IcyFunctions.getDataType( type );
+		if ( dataType == null )
+			throw new IllegalArgumentException( "Unsupported type: " + type );
+
+		final long planeBytes = dims[ 0 ] * dims[ 1 ] * dataType.getSize();
+		if ( planeBytes > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Planes must be smaller than 2 GB, got " + Util.printCoordinates( dims ) + " of " + dataType + "." );
+		long nPlanes = 1;
+		for ( int d = 2; d < dims.length; d++ )
+			nPlanes *= dims[ d ];
+		if ( nPlanes > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many planes: " + nPlanes + "." );
+		final long size = offset + nPlanes * planeBytes;
+
+		final List planes = new ArrayList<>( ( int ) nPlanes );
+		final boolean writable = mode == MapMode.READ_WRITE;
+		try (final FileChannel channel = writable
+				? FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE )
+				: FileChannel.open( file, StandardOpenOption.READ ))
+		{
+			if ( channel.size() < size )
+			{
+				if ( !writable )
+					throw new IOException( "File " + file + " is too small for " + Util.printCoordinates( dims ) + " of " + dataType + ": expected at least " + size + " bytes, got " + channel.size() + "." );
+				// Extends the file, sparsely on most file systems.
+				channel.write( ByteBuffer.wrap( new byte[ 1 ] ), size - 1 );
+			}
+			// Whole planes per region, as many as fit in one mapping.
+			final long planesPerRegion = Math.max( 1, MAX_REGION_BYTES / planeBytes );
+			for ( long r = 0; r < nPlanes; r += planesPerRegion )
+			{
+				final long nRegionPlanes = Math.min( planesPerRegion, nPlanes - r );
+				final MappedByteBuffer region = channel.map( mode, offset + r * planeBytes, nRegionPlanes * planeBytes );
+				for ( int p = 0; p < nRegionPlanes; p++ )
+				{
+					final ByteBuffer plane = region.duplicate();
+					plane.position( ( int ) ( p * planeBytes ) );
+					plane.limit( ( int ) ( ( p + 1 ) * planeBytes ) );
+					planes.add( access( plane.slice().order( order ), dataType ) );
+				}
+			}
+		}
+
+		final PlanarImg img = new PlanarImg( planes, dims, new Fraction() );
+		img.setLinkedType( type.getNativeTypeFactory().createLinkedType( img ) );
+		return img;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Returns an access that reads the values of the specified type from the
+	 * specified buffer, with its byte order.
+	 */
+	private static Object access( final ByteBuffer buffer, final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case BYTE:
+		case UBYTE:
+			return new ByteBufferAccess( buffer, true );
+		case SHORT:
+		case USHORT:
+			return new ShortBufferAccess( buffer, true );
+		case INT:
+		case UINT:
+			return new IntBufferAccess( buffer, true );
+		case LONG:
+		case ULONG:
+			return new LongBufferAccess( buffer, true );
+		case FLOAT:
+			return new FloatBufferAccess( buffer, true );
+		case DOUBLE:
+			return new DoubleBufferAccess( buffer, true );
+		default:
+			throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
+
+	private MappedImgs()
+	{}
+}
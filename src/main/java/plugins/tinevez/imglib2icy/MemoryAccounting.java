@@ -0,0 +1,245 @@
+package plugins.tinevez.imglib2icy;
+
+import icy.sequence.Sequence;
+
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Reports how much memory the live wraps and virtual sequences of this
+ * library use, and whether it is their own.
+ * <p>
+ * For each object, the bytes are split in three:
+ * <ul>
+ * <li><b>owned</b>: pixel data held only by this object, freed when it is
+ * garbage-collected. For instance the copies made by
+ * {@link LayoutConversions}, or the ARGB packing of
+ * {@link ImgLib2IcySequenceAdapter#wrapARGB(Sequence)}.
+ * <li><b>shared</b>: pixel data that also belongs to a counterpart, returned
+ * by {@link Usage#getSharedWith()}, and that is not freed with this object.
+ * For instance the plane arrays of a sequence wrapped by
+ * {@link ImgLib2IcySequenceAdapter#wrap(Sequence)}.
+ * <li><b>cached</b>: pixel data held by this object in a cache, that is
+ * dropped under memory pressure and freed with the object. For instance the
+ * plane cache of a {@link VirtualSequence}.
+ * </ul>
+ * Objects are tracked from their creation until they are garbage-collected,
+ * or closed for the sequences. The registry does not keep them alive.
+ */
+public final class MemoryAccounting
+{
+
+	/**
+	 * The memory used by one object.
+	 */
+	public static final class Usage
+	{
+		private final long owned;
+
+		private final long shared;
+
+		private final long cached;
+
+		private final Object sharedWith;
+
+		public Usage( final long owned, final long shared, final long cached, final Object sharedWith )
+		{
+			this.owned = owned;
+			this.shared = shared;
+			this.cached = cached;
+			this.sharedWith = sharedWith;
+		}
+
+		public long getOwnedBytes()
+		{
+			return owned;
+		}
+
+		public long getSharedBytes()
+		{
+			return shared;
+		}
+
+		public long getCachedBytes()
+		{
+			return cached;
+		}
+
+		/**
+		 * Returns the object that holds the shared bytes, for instance the
+		 * wrapped sequence, or <code>null</code> if there are none.
+		 */
+		public Object getSharedWith()
+		{
+			return sharedWith;
+		}
+
+		/**
+		 * Returns the bytes that would be freed by dropping this object.
+		 */
+		public long getReclaimableBytes()
+		{
+			return owned + cached;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "owned: " + owned + " B, shared: " + shared + " B, cached: " + cached + " B";
+		}
+	}
+
+	/**
+	 * Computes the usage of a registered object. Implementations must not
+	 * hold a strong reference to the object, which is passed to them.
+	 */
+	interface Accountant
+	{
+		public Usage usage( Object object );
+	}
+
+	private static final Map< Object, Accountant > REGISTRY = new WeakHashMap<>();
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Returns the memory used by the specified wrap or virtual sequence, or
+	 * <code>null</code> if it is not tracked.
+	 */
+	public static Usage usage( final Object object )
+	{
+		final Accountant accountant;
+		synchronized ( REGISTRY )
+		{
+			accountant = REGISTRY.get( object );
+		}
+		return accountant == null ? null : accountant.usage( object );
+	}
+
+	/**
+	 * Returns the memory used by each tracked object. The returned map holds
+	 * the objects strongly, and should not be kept.
+	 */
+	public static Map< Object, Usage > snapshot()
+	{
+		final Map< Object, Accountant > registered;
+		synchronized ( REGISTRY )
+		{
+			registered = new IdentityHashMap<>( REGISTRY );
+		}
+		final Map< Object, Usage > usages = new IdentityHashMap<>( registered.size() );
+		for ( final Map.Entry< Object, Accountant > entry : registered.entrySet() )
+			usages.put( entry.getKey(), entry.getValue().usage( entry.getKey() ) );
+		return usages;
+	}
+
+	/**
+	 * Returns the memory used by all the tracked objects. Bytes shared with
+	 * the same sequence by several objects are counted at most once.
+	 */
+	public static Usage total()
+	{
+		long owned = 0;
+		long cached = 0;
+		final Map< Object, Long > shared = new IdentityHashMap<>();
+		for ( final Usage usage : snapshot().values() )
+		{
+			owned += usage.owned;
+			cached += usage.cached;
+			if ( usage.sharedWith != null )
+			{
+				final Long previous = shared.get( usage.sharedWith );
+				shared.put( usage.sharedWith, Long.valueOf( usage.shared + ( previous == null ? 0 : previous.longValue() ) ) );
+			}
+		}
+		long sharedTotal = 0;
+		for ( final Map.Entry< Object, Long > entry : shared.entrySet() )
+		{
+			long bytes = entry.getValue().longValue();
+			if ( entry.getKey() instanceof Sequence )
+				bytes = Math.min( bytes, bytesOf( ( Sequence ) entry.getKey() ) );
+			sharedTotal += bytes;
+		}
+		return new Usage( owned, sharedTotal, cached, null );
+	}
+
+	/**
+	 * Returns the number of bytes of the pixel data of the specified sequence.
+	 */
+	public static long bytesOf( final Sequence sequence )
+	{
+		if ( sequence.getDataType_() == null )
+			return 0;
+		return ( long ) sequence.getSizeX() * sequence.getSizeY() * sequence.getSizeC() * sequence.getSizeZ() * sequence.getSizeT() * sequence.getDataType_().getSize();
+	}
+
+	/*
+	 * REGISTRATION
+	 */
+
+	static void register( final Object object, final Accountant accountant )
+	{
+		synchronized ( REGISTRY )
+		{
+			REGISTRY.put( object, accountant );
+		}
+	}
+
+	static void unregister( final Object object )
+	{
+		synchronized ( REGISTRY )
+		{
+			REGISTRY.remove( object );
+		}
+	}
+
+	/**
+	 * Tracks an object that shares all the pixel data of the specified
+	 * sequence. The sequence is referenced weakly.
+	 */
+	static void registerShared( final Object object, final Sequence sequence )
+	{
+		registerShared( object, sequence, 1. );
+	}
+
+	/**
+	 * Tracks an object that shares the specified fraction of the pixel data
+	 * of the specified sequence. The sequence is referenced weakly.
+	 */
+	static void registerShared( final Object object, final Sequence sequence, final double fraction )
+	{
+		final WeakReference< Sequence > ref = new WeakReference<>( sequence );
+		register( object, new Accountant()
+		{
+			@Override
+			public Usage usage( final Object o )
+			{
+				final Sequence s = ref.get();
+				return s == null ? new Usage( 0, 0, 0, null ) : new Usage( 0, ( long ) ( bytesOf( s ) * fraction ), 0, s );
+			}
+		} );
+	}
+
+	/**
+	 * Tracks an object that owns the specified number of bytes.
+	 */
+	static void registerOwned( final Object object, final long bytes )
+	{
+		final Usage usage = new Usage( bytes, 0, 0, null );
+		register( object, new Accountant()
+		{
+			@Override
+			public Usage usage( final Object o )
+			{
+				return usage;
+			}
+		} );
+	}
+
+	private MemoryAccounting()
+	{}
+}
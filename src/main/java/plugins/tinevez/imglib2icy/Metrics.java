@@ -0,0 +1,348 @@
+package plugins.tinevez.imglib2icy;
+
+import icy.sequence.Sequence;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runtime counters and timers of the wrappers, exposed as an MXBean on the
+ * platform MBean server under {@value #OBJECT_NAME}.
+ * <p>
+ * Collection is disabled by default, and can be enabled with the
+ * <code>imglib2icy.metrics</code> system property, through JMX or with
+ * {@link #setEnabled(boolean)}. When disabled, the instrumented code only
+ * reads a volatile flag.
+ * <p>
+ * Independently, the calls to {@link VirtualSequence#getImage(int, int)}
+ * lasting more than {@link #getSlowGetImageThresholdMillis()} are logged at
+ * the {@link Level#WARNING} level. The threshold is read from the
+ * <code>imglib2icy.slowGetImageMillis</code> system property, and is negative
+ * by default, which disables the logging.
+ */
+public final class Metrics implements MetricsMXBean
+{
+
+	public static final String OBJECT_NAME = "plugins.tinevez.imglib2icy:type=Metrics";
+
+	private static final Logger LOGGER = Logger.getLogger( Metrics.class.getName() );
+
+	private static final Metrics INSTANCE = new Metrics();
+
+	private static volatile boolean enabled = Boolean.getBoolean( "imglib2icy.metrics" );
+
+	private static volatile long slowGetImageThresholdNanos = Long.getLong( "imglib2icy.slowGetImageMillis", -1l ) * 1000000l;
+
+	private static final LongAdder PLANES_PROJECTED = new LongAdder();
+
+	private static final LongAdder PROJECTION_NANOS = new LongAdder();
+
+	/**
+	 * Number of planes per projection time bucket. The bucket i counts the
+	 * planes projected in [2^i, 2^(i+1)) microseconds, the first one also
+	 * those faster than 1 microsecond, the last one all the slower ones.
+	 */
+	private static final LongAdder[] PROJECTION_HISTOGRAM = new LongAdder[ 24 ];
+
+	private static final LongAdder BYTES_CONVERTED = new LongAdder();
+
+	private static final LongAdder CACHE_HITS = new LongAdder();
+
+	private static final LongAdder CACHE_MISSES = new LongAdder();
+
+	private static final LongAdder KEPT_IMAGE_HITS = new LongAdder();
+
+	private static final LongAdder GET_IMAGE_CALLS = new LongAdder();
+
+	private static final LongAdder GET_IMAGE_NANOS = new LongAdder();
+
+	private static final LongAdder SLOW_GET_IMAGE_CALLS = new LongAdder();
+
+	private static final LongAdder SPLIT_OUTPUTS = new LongAdder();
+
+	private static final ConcurrentHashMap< String, LongAdder > WRAPS = new ConcurrentHashMap<>();
+
+	static
+	{
+		for ( int i = 0; i < PROJECTION_HISTOGRAM.length; i++ )
+			PROJECTION_HISTOGRAM[ i ] = new LongAdder();
+		try
+		{
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName( OBJECT_NAME );
+			if ( !server.isRegistered( name ) )
+				server.registerMBean( INSTANCE, name );
+		}
+		catch ( final JMException | SecurityException e )
+		{
+			LOGGER.log( Level.FINE, "Could not register the metrics MXBean.", e );
+		}
+	}
+
+	/**
+	 * Returns the metrics, for access without JMX.
+	 */
+	public static Metrics get()
+	{
+		return INSTANCE;
+	}
+
+	/*
+	 * MXBEAN METHODS
+	 */
+
+	@Override
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled( final boolean enabled )
+	{
+		Metrics.enabled = enabled;
+	}
+
+	@Override
+	public long getSlowGetImageThresholdMillis()
+	{
+		final long threshold = slowGetImageThresholdNanos;
+		return threshold < 0 ? -1 : threshold / 1000000l;
+	}
+
+	@Override
+	public void setSlowGetImageThresholdMillis( final long threshold )
+	{
+		slowGetImageThresholdNanos = threshold < 0 ? -1 : threshold * 1000000l;
+	}
+
+	@Override
+	public long getPlanesProjected()
+	{
+		return PLANES_PROJECTED.sum();
+	}
+
+	@Override
+	public long getProjectionTimeNanos()
+	{
+		return PROJECTION_NANOS.sum();
+	}
+
+	@Override
+	public double getMeanProjectionTimePerPlaneMicros()
+	{
+		final long planes = PLANES_PROJECTED.sum();
+		return planes == 0 ? 0. : PROJECTION_NANOS.sum() / 1000. / planes;
+	}
+
+	@Override
+	public long[] getProjectionTimeHistogram()
+	{
+		final long[] histogram = new long[ PROJECTION_HISTOGRAM.length ];
+		for ( int i = 0; i < histogram.length; i++ )
+			histogram[ i ] = PROJECTION_HISTOGRAM[ i ].sum();
+		return histogram;
+	}
+
+	@Override
+	public long getProjectionTimePerPlanePercentileMicros( final double percentile )
+	{
+		final long[] histogram = getProjectionTimeHistogram();
+		long total = 0;
+		for ( final long count : histogram )
+			total += count;
+		if ( total == 0 )
+			return 0;
+
+		final double rank = Math.max( 0., Math.min( 100., percentile ) ) / 100. * total;
+		long cumulated = 0;
+		for ( int i = 0; i < histogram.length; i++ )
+		{
+			cumulated += histogram[ i ];
+			// Empty leading buckets do not count, even for the 0th percentile.
+			if ( histogram[ i ] > 0 && cumulated >= rank )
+				return 1l << ( i + 1 );
+		}
+		return 1l << histogram.length;
+	}
+
+	@Override
+	public long getBytesConverted()
+	{
+		return BYTES_CONVERTED.sum();
+	}
+
+	@Override
+	public long getCacheHits()
+	{
+		return CACHE_HITS.sum();
+	}
+
+	@Override
+	public long getCacheMisses()
+	{
+		return CACHE_MISSES.sum();
+	}
+
+	@Override
+	public double getCacheHitRatio()
+	{
+		final long hits = CACHE_HITS.sum();
+		final long total = hits + CACHE_MISSES.sum();
+		return total == 0 ? 0. : ( double ) hits / total;
+	}
+
+	@Override
+	public long getKeptImageHits()
+	{
+		return KEPT_IMAGE_HITS.sum();
+	}
+
+	@Override
+	public long getGetImageCalls()
+	{
+		return GET_IMAGE_CALLS.sum();
+	}
+
+	@Override
+	public double getMeanGetImageTimeMicros()
+	{
+		final long calls = GET_IMAGE_CALLS.sum();
+		return calls == 0 ? 0. : GET_IMAGE_NANOS.sum() / 1000. / calls;
+	}
+
+	@Override
+	public long getSlowGetImageCalls()
+	{
+		return SLOW_GET_IMAGE_CALLS.sum();
+	}
+
+	@Override
+	public Map< String, Long > getWrapsPerType()
+	{
+		final Map< String, Long > wraps = new TreeMap<>();
+		for ( final Map.Entry< String, LongAdder > entry : WRAPS.entrySet() )
+			wraps.put( entry.getKey(), Long.valueOf( entry.getValue().sum() ) );
+		return wraps;
+	}
+
+	@Override
+	public long getSplitOutputsCreated()
+	{
+		return SPLIT_OUTPUTS.sum();
+	}
+
+	@Override
+	public void reset()
+	{
+		PLANES_PROJECTED.reset();
+		PROJECTION_NANOS.reset();
+		for ( final LongAdder bucket : PROJECTION_HISTOGRAM )
+			bucket.reset();
+		BYTES_CONVERTED.reset();
+		CACHE_HITS.reset();
+		CACHE_MISSES.reset();
+		KEPT_IMAGE_HITS.reset();
+		GET_IMAGE_CALLS.reset();
+		GET_IMAGE_NANOS.reset();
+		SLOW_GET_IMAGE_CALLS.reset();
+		SPLIT_OUTPUTS.reset();
+		WRAPS.clear();
+	}
+
+	/*
+	 * RECORDING METHODS
+	 */
+
+	/**
+	 * Returns <code>true</code> if the counters are collected. Callers check
+	 * it before measuring anything.
+	 */
+	static boolean collecting()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Returns <code>true</code> if the duration of
+	 * {@link VirtualSequence#getImage(int, int)} must be measured, for the
+	 * counters or for the slow call log.
+	 */
+	static boolean timingGetImage()
+	{
+		return enabled || slowGetImageThresholdNanos >= 0;
+	}
+
+	static void planesProjected( final int planes, final long bytes, final long nanos )
+	{
+		PLANES_PROJECTED.add( planes );
+		BYTES_CONVERTED.add( bytes );
+		PROJECTION_NANOS.add( nanos );
+		if ( planes > 0 )
+		{
+			final long micros = nanos / planes / 1000l;
+			final int bucket = micros < 1 ? 0 : 63 - Long.numberOfLeadingZeros( micros );
+			PROJECTION_HISTOGRAM[ Math.min( bucket, PROJECTION_HISTOGRAM.length - 1 ) ].add( planes );
+		}
+	}
+
+	static void cacheLookups( final int hits, final int misses )
+	{
+		CACHE_HITS.add( hits );
+		CACHE_MISSES.add( misses );
+	}
+
+	static void keptImageHit()
+	{
+		KEPT_IMAGE_HITS.increment();
+	}
+
+	/**
+	 * Counts a call to a public wrap method over the specified sequence.
+	 */
+	static void wrapped( final String method, final Sequence sequence )
+	{
+		final String type = method + ":" + ( sequence instanceof VirtualSequence ? "virtual " : "" ) + sequence.getDataType_();
+		LongAdder adder = WRAPS.get( type );
+		if ( adder == null )
+		{
+			final LongAdder created = new LongAdder();
+			adder = WRAPS.putIfAbsent( type, created );
+			if ( adder == null )
+				adder = created;
+		}
+		adder.increment();
+	}
+
+	static void splitOutputCreated()
+	{
+		SPLIT_OUTPUTS.increment();
+	}
+
+	static void imageFetched( final Sequence sequence, final int t, final int z, final long nanos )
+	{
+		if ( enabled )
+		{
+			GET_IMAGE_CALLS.increment();
+			GET_IMAGE_NANOS.add( nanos );
+		}
+		final long threshold = slowGetImageThresholdNanos;
+		if ( threshold >= 0 && nanos > threshold )
+		{
+			SLOW_GET_IMAGE_CALLS.increment();
+			LOGGER.warning( String.format( "Slow getImage on %s at t=%d, z=%d: %.1f ms.", sequence.getName(), t, z, nanos / 1e6 ) );
+		}
+	}
+
+	private Metrics()
+	{}
+}
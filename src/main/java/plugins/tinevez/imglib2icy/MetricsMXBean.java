@@ -0,0 +1,85 @@
+package plugins.tinevez.imglib2icy;
+
+import java.util.Map;
+
+/**
+ * Management interface of the runtime {@link Metrics} of the wrappers,
+ * registered under {@value Metrics#OBJECT_NAME}.
+ */
+public interface MetricsMXBean
+{
+	public boolean isEnabled();
+
+	public void setEnabled( boolean enabled );
+
+	/**
+	 * Returns the duration above which a call to
+	 * {@link VirtualSequence#getImage(int, int)} is logged, in milliseconds.
+	 * Negative if slow calls are not logged.
+	 */
+	public long getSlowGetImageThresholdMillis();
+
+	public void setSlowGetImageThresholdMillis( long threshold );
+
+	public long getPlanesProjected();
+
+	public long getProjectionTimeNanos();
+
+	public double getMeanProjectionTimePerPlaneMicros();
+
+	/**
+	 * Returns the number of planes per projection time bucket. The bucket i
+	 * counts the planes projected in [2^i, 2^(i+1)) microseconds, the first
+	 * one also the faster ones, the last one also the slower ones. Planes
+	 * projected together are given the same mean time.
+	 */
+	public long[] getProjectionTimeHistogram();
+
+	/**
+	 * Returns the projection time per plane under which the specified
+	 * percentage of the planes were projected, in microseconds, rounded up
+	 * to the upper bound of its histogram bucket.
+	 */
+	public long getProjectionTimePerPlanePercentileMicros( double percentile );
+
+	public long getBytesConverted();
+
+	public long getCacheHits();
+
+	public long getCacheMisses();
+
+	/**
+	 * Returns the ratio of the plane cache lookups that found their plane.
+	 * Requests served from the images kept by each virtual sequence do not
+	 * look up the plane cache, and are counted by {@link #getKeptImageHits()}
+	 * instead.
+	 */
+	public double getCacheHitRatio();
+
+	/**
+	 * Returns the number of calls to
+	 * {@link VirtualSequence#getImage(int, int)} that returned an image kept
+	 * from a previous call, without looking up the plane cache.
+	 */
+	public long getKeptImageHits();
+
+	public long getGetImageCalls();
+
+	public double getMeanGetImageTimeMicros();
+
+	public long getSlowGetImageCalls();
+
+	/**
+	 * Returns the number of calls to the public wrap methods, keyed by method
+	 * and data type of the sequence, for instance <code>wrap:UBYTE</code> or
+	 * <code>lazy:virtual FLOAT</code>.
+	 */
+	public Map< String, Long > getWrapsPerType();
+
+	public long getSplitOutputsCreated();
+
+	/**
+	 * Sets all the counters to 0.
+	 */
+	public void reset();
+}
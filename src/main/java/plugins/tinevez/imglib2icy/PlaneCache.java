@@ -0,0 +1,512 @@
+package plugins.tinevez.imglib2icy;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used cache of XY planes, keyed by their (t, z, c)
+ * position.
+ * <p>
+ * Each cache instance has its own byte budget, and all instances share a
+ * global byte budget. When an instance exceeds its own budget, its least
+ * recently used planes are evicted. When the sum over all instances exceeds
+ * the global budget, the least recently used planes are evicted, whatever
+ * instance they belong to.
+ * <p>
+ * Planes are stored as primitive arrays. The cache takes ownership of the
+ * arrays it is given: they must not be modified after having been put in the
+ * cache.
+ * <p>
+ * This class is thread-safe. The planes of each instance are spread over
+ * independently locked segments, according to their position. A lock is only
+ * held while a plane is looked up or modified, so that readers of different
+ * caches never wait for each other, and readers of the same cache only when
+ * their planes fall in the same segment. The global budget only references the instances weakly: a cache
+ * that is never cleared is still garbage-collected with its owner, and its
+ * bytes are then released from the global count.
+ */
+public class PlaneCache
+{
+
+	/**
+	 * Interface for the callback notified before a plane is evicted.
+	 */
+	public interface EvictionListener
+	{
+		public void evicting( int t, int z, int c, Object data );
+	}
+
+	/**
+	 * The default global budget: a quarter of the max heap.
+	 */
+	public static final long DEFAULT_GLOBAL_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+	private static final int NUM_SEGMENTS = 16;
+
+	/**
+	 * The live instances, weakly referenced, to evict from when the global
+	 * budget is exceeded.
+	 */
+	private static final Set< Tracker > TRACKERS = Collections.newSetFromMap( new ConcurrentHashMap< Tracker, Boolean >() );
+
+	private static final ReferenceQueue< PlaneCache > COLLECTED = new ReferenceQueue<>();
+
+	/**
+	 * Incremented at each access, to compare the age of the planes of
+	 * different instances.
+	 */
+	private static final AtomicLong TICK = new AtomicLong();
+
+	private static final AtomicLong GLOBAL_BYTES = new AtomicLong();
+
+	private static volatile long globalBudget = DEFAULT_GLOBAL_BUDGET;
+
+	/**
+	 * The planes, spread by position over maps in access order. Each map is
+	 * also the lock of its segment.
+	 */
+	private final LinkedHashMap< Key, Entry >[] segments;
+
+	/**
+	 * The number of bytes of the planes in the segments. Only modified while
+	 * holding the lock of the segment of the plane added or removed.
+	 */
+	private final AtomicLong bytes = new AtomicLong();
+
+	private volatile long budget;
+
+	private volatile EvictionListener evictionListener;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates a new, empty plane cache.
+	 *
+	 * @param budget
+	 *            the maximal number of bytes this cache can hold.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public PlaneCache( final long budget )
+	{
+		this.budget = budget;
+		this.segments = new LinkedHashMap[ NUM_SEGMENTS ];
+		for ( int i = 0; i < NUM_SEGMENTS; i++ )
+			segments[ i ] = new LinkedHashMap<>( 16, 0.75f, true );
+		expunge();
+		TRACKERS.add( new Tracker( this ) );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Returns the plane stored at the specified position, or <code>null</code>
+	 * if it is not in the cache.
+	 */
+	public Object get( final int t, final int z, final int c )
+	{
+		final Key key = new Key( t, z, c );
+		final LinkedHashMap< Key, Entry > map = segmentOf( key );
+		synchronized ( map )
+		{
+			final Entry entry = map.get( key );
+			if ( entry == null )
+				return null;
+			entry.tick = TICK.incrementAndGet();
+			return entry.data;
+		}
+	}
+
+	/**
+	 * Stores a plane at the specified position, then evicts planes until the
+	 * budgets are met. Planes larger than the budget of this cache are not
+	 * stored.
+	 */
+	public void put( final int t, final int z, final int c, final Object data )
+	{
+		final long size = sizeOf( data );
+		if ( size > budget || size > globalBudget )
+			return;
+
+		expunge();
+		final Key key = new Key( t, z, c );
+		final LinkedHashMap< Key, Entry > map = segmentOf( key );
+		final long added;
+		synchronized ( map )
+		{
+			final Entry previous = map.put( key, new Entry( data, size, TICK.incrementAndGet() ) );
+			added = previous == null ? size : size - previous.size;
+			bytes.addAndGet( added );
+		}
+		GLOBAL_BYTES.addAndGet( added );
+		evict();
+	}
+
+	/**
+	 * Removes the plane stored at the specified position, if any.
+	 */
+	public void remove( final int t, final int z, final int c )
+	{
+		final Key key = new Key( t, z, c );
+		final LinkedHashMap< Key, Entry > map = segmentOf( key );
+		final Entry previous;
+		synchronized ( map )
+		{
+			previous = map.remove( key );
+			if ( previous == null )
+				return;
+			bytes.addAndGet( -previous.size );
+		}
+		GLOBAL_BYTES.addAndGet( -previous.size );
+	}
+
+	/**
+	 * Removes the plane stored at the specified position, only if it is the
+	 * specified plane. Returns whether it was removed.
+	 */
+	public boolean remove( final int t, final int z, final int c, final Object data )
+	{
+		final Key key = new Key( t, z, c );
+		final LinkedHashMap< Key, Entry > map = segmentOf( key );
+		final Entry previous;
+		synchronized ( map )
+		{
+			previous = map.get( key );
+			if ( previous == null || previous.data != data )
+				return false;
+			map.remove( key );
+			bytes.addAndGet( -previous.size );
+		}
+		GLOBAL_BYTES.addAndGet( -previous.size );
+		return true;
+	}
+
+	/**
+	 * Removes all the planes of this cache.
+	 */
+	public void clear()
+	{
+		for ( final LinkedHashMap< Key, Entry > map : segments )
+		{
+			long removed = 0;
+			synchronized ( map )
+			{
+				for ( final Entry entry : map.values() )
+					removed += entry.size;
+				map.clear();
+				bytes.addAndGet( -removed );
+			}
+			GLOBAL_BYTES.addAndGet( -removed );
+		}
+	}
+
+	/**
+	 * Returns the planes currently stored in this cache, compared by identity.
+	 * Unlike {@link #get(int, int, int)}, does not make them more recently
+	 * used.
+	 */
+	Set< Object > planes()
+	{
+		final Set< Object > planes = Collections.newSetFromMap( new IdentityHashMap< Object, Boolean >() );
+		for ( final LinkedHashMap< Key, Entry > map : segments )
+		{
+			synchronized ( map )
+			{
+				for ( final Entry entry : map.values() )
+					planes.add( entry.data );
+			}
+		}
+		return planes;
+	}
+
+	/**
+	 * Returns the number of bytes currently stored in this cache.
+	 */
+	public long getBytes()
+	{
+		return bytes.get();
+	}
+
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Sets the maximal number of bytes this cache can hold, evicting planes if
+	 * needed.
+	 */
+	public void setBudget( final long budget )
+	{
+		this.budget = budget;
+		evict();
+	}
+
+	/**
+	 * Sets the callback notified before a plane of this cache is evicted
+	 * because a budget is exceeded. The plane is still in the cache when the
+	 * callback is called. Planes removed with the remove methods
+	 * or {@link #clear()} are not notified.
+	 */
+	public void setEvictionListener( final EvictionListener evictionListener )
+	{
+		this.evictionListener = evictionListener;
+	}
+
+	/**
+	 * Returns the number of bytes currently stored in all the plane caches.
+	 */
+	public static long getGlobalBytes()
+	{
+		expunge();
+		return GLOBAL_BYTES.get();
+	}
+
+	public static long getGlobalBudget()
+	{
+		return globalBudget;
+	}
+
+	/**
+	 * Sets the maximal number of bytes all the plane caches can hold together,
+	 * evicting planes if needed.
+	 */
+	public static void setGlobalBudget( final long budget )
+	{
+		globalBudget = budget;
+		expunge();
+		while ( GLOBAL_BYTES.get() > globalBudget && evictGlobalEldest() )
+		{}
+	}
+
+	/**
+	 * Returns the size in bytes of the specified primitive array.
+	 */
+	public static long sizeOf( final Object array )
+	{
+		final long length = Array.getLength( array );
+		final Class< ? > type = array.getClass().getComponentType();
+		if ( type == byte.class )
+			return length;
+		if ( type == short.class || type == char.class )
+			return 2 * length;
+		if ( type == int.class || type == float.class )
+			return 4 * length;
+		if ( type == long.class || type == double.class )
+			return 8 * length;
+		throw new IllegalArgumentException( "Not a primitive numeric array: " + array );
+	}
+
+	/**
+	 * Returns a copy of the specified primitive array.
+	 */
+	public static Object copyOf( final Object array )
+	{
+		final int length = Array.getLength( array );
+		final Object copy = Array.newInstance( array.getClass().getComponentType(), length );
+		System.arraycopy( array, 0, copy, 0, length );
+		return copy;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private void evict()
+	{
+		while ( bytes.get() > budget && evictEldest() )
+		{}
+		while ( GLOBAL_BYTES.get() > globalBudget && evictGlobalEldest() )
+		{}
+	}
+
+	/**
+	 * Evicts the least recently used plane of this cache, the eldest of the
+	 * eldest planes of the segments. Returns <code>false</code> if there was
+	 * nothing to evict.
+	 * <p>
+	 * The listener is called without holding any lock. The plane is not
+	 * evicted if it was replaced in the meantime.
+	 */
+	private boolean evictEldest()
+	{
+		LinkedHashMap< Key, Entry > map = null;
+		Key key = null;
+		Entry entry = null;
+		for ( final LinkedHashMap< Key, Entry > segment : segments )
+		{
+			synchronized ( segment )
+			{
+				// Access-ordered: the first entry is the eldest.
+				final Iterator< Map.Entry< Key, Entry > > it = segment.entrySet().iterator();
+				if ( !it.hasNext() )
+					continue;
+				final Map.Entry< Key, Entry > eldest = it.next();
+				if ( entry == null || eldest.getValue().tick < entry.tick )
+				{
+					map = segment;
+					key = eldest.getKey();
+					entry = eldest.getValue();
+				}
+			}
+		}
+		if ( entry == null )
+			return false;
+
+		final EvictionListener listener = evictionListener;
+		if ( listener != null )
+			listener.evicting( key.t, key.z, key.c, entry.data );
+
+		synchronized ( map )
+		{
+			if ( map.get( key ) != entry )
+				return true;
+			map.remove( key );
+			bytes.addAndGet( -entry.size );
+		}
+		GLOBAL_BYTES.addAndGet( -entry.size );
+		return true;
+	}
+
+	/**
+	 * Returns the access tick of the least recently used plane of this cache,
+	 * or {@link Long#MAX_VALUE} if it is empty.
+	 */
+	private long eldestTick()
+	{
+		long tick = Long.MAX_VALUE;
+		for ( final LinkedHashMap< Key, Entry > map : segments )
+		{
+			synchronized ( map )
+			{
+				final Iterator< Entry > it = map.values().iterator();
+				if ( it.hasNext() )
+					tick = Math.min( tick, it.next().tick );
+			}
+		}
+		return tick;
+	}
+
+	private LinkedHashMap< Key, Entry > segmentOf( final Key key )
+	{
+		final int h = key.hashCode();
+		return segments[ ( h ^ ( h >>> 16 ) ) & ( NUM_SEGMENTS - 1 ) ];
+	}
+
+	/**
+	 * Evicts the least recently used plane over all the caches. Only the
+	 * eldest plane of each cache is compared. Returns <code>false</code> if
+	 * there was nothing to evict.
+	 */
+	private static boolean evictGlobalEldest()
+	{
+		PlaneCache eldest = null;
+		long eldestTick = Long.MAX_VALUE;
+		for ( final Tracker tracker : TRACKERS )
+		{
+			final PlaneCache cache = tracker.get();
+			if ( cache == null )
+				continue;
+			final long tick = cache.eldestTick();
+			if ( tick < eldestTick )
+			{
+				eldest = cache;
+				eldestTick = tick;
+			}
+		}
+		return eldest != null && eldest.evictEldest();
+	}
+
+	/**
+	 * Releases the bytes of the caches that were garbage-collected without
+	 * being cleared.
+	 */
+	private static void expunge()
+	{
+		Reference< ? extends PlaneCache > ref;
+		while ( ( ref = COLLECTED.poll() ) != null )
+		{
+			final Tracker tracker = ( Tracker ) ref;
+			if ( TRACKERS.remove( tracker ) )
+				GLOBAL_BYTES.addAndGet( -tracker.bytes.get() );
+		}
+	}
+
+	/**
+	 * Weak reference to a cache, that keeps its byte count so that it can be
+	 * released once the cache is garbage-collected.
+	 */
+	private static final class Tracker extends WeakReference< PlaneCache >
+	{
+		private final AtomicLong bytes;
+
+		private Tracker( final PlaneCache cache )
+		{
+			super( cache, COLLECTED );
+			this.bytes = cache.bytes;
+		}
+	}
+
+	private static final class Entry
+	{
+		private final Object data;
+
+		private final long size;
+
+		private long tick;
+
+		private Entry( final Object data, final long size, final long tick )
+		{
+			this.data = data;
+			this.size = size;
+			this.tick = tick;
+		}
+	}
+
+	private static final class Key
+	{
+		private final int t;
+
+		private final int z;
+
+		private final int c;
+
+		private Key( final int t, final int z, final int c )
+		{
+			this.t = t;
+			this.z = z;
+			this.c = c;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = t;
+			result = 31 * result + z;
+			result = 31 * result + c;
+			return result;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key o = ( Key ) obj;
+			return t == o.t && z == o.z && c == o.c;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package plugins.tinevez.imglib2icy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the (t, z) positions that are likely to be requested next on worker
+ * threads.
+ * <p>
+ * After each position is requested, the prefetcher queues its neighbours
+ * t&plusmn;1 and z&plusmn;1, and up to {@link #getDepth()} positions further
+ * along the direction the user is scrubbing in. The direction is the sign of
+ * the last step along T or Z, and the positions ahead are spaced by this step,
+ * so that playback skipping frames is read ahead too. When stale cancellation
+ * is enabled, queued positions that are not neighbours of the last requested
+ * position are dropped before they start.
+ */
+public class PlanePrefetcher
+{
+
+	/**
+	 * Interface for the callback that loads one (t, z) position.
+	 */
+	public interface Loader
+	{
+		public void load( int t, int z );
+	}
+
+	public static final int DEFAULT_DEPTH = 2;
+
+	public static final int DEFAULT_NUM_THREADS = Math.max( 1, Math.min( 4, Runtime.getRuntime().availableProcessors() / 2 ) );
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	/**
+	 * Static, so that idle worker threads do not reference the prefetcher,
+	 * and through its loader the sequence.
+	 */
+	private static final ThreadFactory THREAD_FACTORY = new ThreadFactory()
+	{
+		@Override
+		public Thread newThread( final Runnable r )
+		{
+			final Thread thread = new Thread( r, "VirtualSequence prefetcher " + THREAD_COUNT.incrementAndGet() );
+			thread.setDaemon( true );
+			thread.setPriority( Thread.NORM_PRIORITY - 1 );
+			return thread;
+		}
+	};
+
+	private final int sizeT;
+
+	private final int sizeZ;
+
+	private final Loader loader;
+
+	private final ThreadPoolExecutor executor;
+
+	private final Map< Long, Task > pending = new ConcurrentHashMap<>();
+
+	private volatile int depth = DEFAULT_DEPTH;
+
+	private volatile boolean cancelStale = true;
+
+	private int lastT = -1;
+
+	private int lastZ = -1;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	public PlanePrefetcher( final int sizeT, final int sizeZ, final Loader loader )
+	{
+		this.sizeT = sizeT;
+		this.sizeZ = sizeZ;
+		this.loader = loader;
+		this.executor = new ThreadPoolExecutor( DEFAULT_NUM_THREADS, DEFAULT_NUM_THREADS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue< Runnable >(), THREAD_FACTORY );
+		executor.allowCoreThreadTimeOut( true );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Notifies the prefetcher that the specified position was just requested,
+	 * and queues its neighbours for loading. Must be called on every request,
+	 * including the ones served from memory. Repeated requests for the last
+	 * position are ignored.
+	 */
+	public synchronized void prefetch( final int t, final int z )
+	{
+		if ( t == lastT && z == lastZ )
+			return;
+
+		// A step along T or Z only, of any length and in either direction.
+		final int dt = lastT >= 0 && z == lastZ ? t - lastT : 0;
+		final int dz = lastZ >= 0 && t == lastT ? z - lastZ : 0;
+		lastT = t;
+		lastZ = z;
+		if ( depth <= 0 || executor.isShutdown() )
+			return;
+
+		// Along the scrubbing direction first, then the immediate neighbours.
+		final Set< Long > targets = new LinkedHashSet<>();
+		for ( int k = 1; k <= depth; k++ )
+		{
+			if ( dt != 0 )
+				add( targets, t + k * dt, z );
+			if ( dz != 0 )
+				add( targets, t, z + k * dz );
+		}
+		add( targets, t + 1, z );
+		add( targets, t - 1, z );
+		add( targets, t, z + 1 );
+		add( targets, t, z - 1 );
+
+		if ( cancelStale )
+		{
+			final List< Task > stale = new ArrayList<>();
+			for ( final Task task : pending.values() )
+			{
+				if ( !targets.contains( task.key ) )
+					stale.add( task );
+			}
+			for ( final Task task : stale )
+				cancel( task );
+		}
+
+		for ( final Long key : targets )
+		{
+			if ( pending.containsKey( key ) )
+				continue;
+			final Task task = new Task( key );
+			pending.put( key, task );
+			executor.execute( task );
+		}
+	}
+
+	/**
+	 * Makes sure the specified position is not being loaded concurrently. If
+	 * it is queued, it is dropped. If it is being loaded, this method waits
+	 * for the load to complete.
+	 */
+	public void await( final int t, final int z )
+	{
+		final Task task = pending.get( key( t, z ) );
+		if ( task == null || cancel( task ) )
+			return;
+
+		try
+		{
+			task.done.await();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Drops all the queued positions.
+	 */
+	public void cancelAll()
+	{
+		for ( final Task task : new ArrayList<>( pending.values() ) )
+			cancel( task );
+	}
+
+	/**
+	 * Drops all the queued positions and stops the worker threads.
+	 */
+	public void shutdown()
+	{
+		cancelAll();
+		executor.shutdown();
+	}
+
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * Sets how many positions are prefetched ahead along the scrubbing
+	 * direction. A depth of 0 disables prefetching.
+	 */
+	public void setDepth( final int depth )
+	{
+		this.depth = depth;
+		if ( depth <= 0 )
+			cancelAll();
+	}
+
+	public int getNumThreads()
+	{
+		return executor.getMaximumPoolSize();
+	}
+
+	public synchronized void setNumThreads( final int numThreads )
+	{
+		if ( numThreads < 1 )
+			throw new IllegalArgumentException( "The number of prefetch threads must be at least 1, got " + numThreads + "." );
+
+		if ( numThreads > executor.getMaximumPoolSize() )
+		{
+			executor.setMaximumPoolSize( numThreads );
+			executor.setCorePoolSize( numThreads );
+		}
+		else
+		{
+			executor.setCorePoolSize( numThreads );
+			executor.setMaximumPoolSize( numThreads );
+		}
+	}
+
+	public boolean isCancelStale()
+	{
+		return cancelStale;
+	}
+
+	/**
+	 * Sets whether queued positions that are not neighbours of the last
+	 * requested position are dropped.
+	 */
+	public void setCancelStale( final boolean cancelStale )
+	{
+		this.cancelStale = cancelStale;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private boolean cancel( final Task task )
+	{
+		if ( !task.state.compareAndSet( Task.QUEUED, Task.DONE ) )
+			return false;
+		executor.remove( task );
+		pending.remove( task.key, task );
+		task.done.countDown();
+		return true;
+	}
+
+	private void add( final Set< Long > targets, final int t, final int z )
+	{
+		if ( t < 0 || t >= sizeT || z < 0 || z >= sizeZ )
+			return;
+		targets.add( key( t, z ) );
+	}
+
+	private static Long key( final int t, final int z )
+	{
+		return Long.valueOf( ( ( long ) t << 32 ) | ( z & 0xffffffffL ) );
+	}
+
+	private final class Task implements Runnable
+	{
+
+		private static final int QUEUED = 0;
+
+		private static final int RUNNING = 1;
+
+		private static final int DONE = 2;
+
+		private final Long key;
+
+		private final AtomicInteger state = new AtomicInteger( QUEUED );
+
+		private final CountDownLatch done = new CountDownLatch( 1 );
+
+		private Task( final Long key )
+		{
+			this.key = key;
+		}
+
+		@Override
+		public void run()
+		{
+			if ( !state.compareAndSet( QUEUED, RUNNING ) )
+				return;
+			try
+			{
+				final long k = key.longValue();
+				loader.load( ( int ) ( k >> 32 ), ( int ) k );
+			}
+			finally
+			{
+				state.set( DONE );
+				pending.remove( key, this );
+				done.countDown();
+			}
+		}
+	}
+}
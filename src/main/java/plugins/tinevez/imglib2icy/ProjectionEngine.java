@@ -0,0 +1,334 @@
+package plugins.tinevez.imglib2icy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.loops.ClassCopyProvider;
+
+/**
+ * Copies 2D source planes into 2D target planes through a converter, or
+ * through a bulk conversion kernel when the planes are stored in primitive
+ * arrays, in parallel.
+ * <p>
+ * Several planes (typically the channels of one (t, z) position) are
+ * processed concurrently, and large planes are further split into stripes of
+ * rows that are processed concurrently.
+ */
+public class ProjectionEngine
+{
+
+	/**
+	 * Planes smaller than twice this number of pixels are not split in
+	 * stripes.
+	 */
+	public static final int DEFAULT_MIN_STRIPE_SIZE = 128 * 1024;
+
+	public static final int DEFAULT_NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	/**
+	 * All the engines share the same pool. The number of threads of an engine
+	 * only bounds the number of tasks it submits at once.
+	 */
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool( DEFAULT_NUM_THREADS, new ThreadFactory()
+	{
+		@Override
+		public Thread newThread( final Runnable r )
+		{
+			final Thread thread = new Thread( r, "VirtualSequence projector " + THREAD_COUNT.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		}
+	} );
+
+	/**
+	 * Loads one copy of the stripe loop class per combination of source
+	 * access, target access and converter classes. This keeps the call sites
+	 * of the loop monomorphic, even when many different sources are
+	 * displayed.
+	 */
+	private static final ClassCopyProvider< StripeLoop > LOOPS = new ClassCopyProvider<>( ConvertingStripeLoop.class, StripeLoop.class );
+
+	private volatile int numThreads = DEFAULT_NUM_THREADS;
+
+	private volatile int minStripeSize = DEFAULT_MIN_STRIPE_SIZE;
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Copies each source plane into the target plane with the same index.
+	 * Sources and targets must be zero-min, 2D and of the same size.
+	 *
+	 * @param sources
+	 *            the source planes.
+	 * @param targets
+	 *            the target planes.
+	 * @param converter
+	 *            the converter from source to target pixels. Must be stateless,
+	 *            as it is shared by all threads.
+	 * @param parallel
+	 *            if <code>false</code>, everything is done on the caller
+	 *            thread.
+	 */
+	public void project( final RandomAccessibleInterval< ? >[] sources, final RandomAccessibleInterval< ? >[] targets, final Converter< ?, ? > converter, final boolean parallel )
+	{
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		for ( int i = 0; i < sources.length; i++ )
+		{
+			final RandomAccessibleInterval< ? > source = sources[ i ];
+			final RandomAccessibleInterval< ? > target = targets[ i ];
+			final long sizeX = target.dimension( 0 );
+			final long sizeY = target.dimension( 1 );
+			final int nStripes = parallel ? numStripes( sizeX, sizeY ) : 1;
+			for ( int s = 0; s < nStripes; s++ )
+			{
+				final long y0 = sizeY * s / nStripes;
+				final long y1 = sizeY * ( s + 1 ) / nStripes;
+				tasks.add( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						copy( source, target, converter, y0, y1 );
+						return null;
+					}
+				} );
+			}
+		}
+
+		run( tasks, parallel );
+	}
+
+	/**
+	 * Converts each source plane into the target plane with the same index,
+	 * with a bulk conversion kernel. Sources and targets are primitive arrays
+	 * that store planes of the specified size.
+	 *
+	 * @param sources
+	 *            the arrays that store the source planes.
+	 * @param sourceOffsets
+	 *            the offsets of the source planes in their arrays.
+	 * @param targets
+	 *            the arrays of the target planes. The target planes start at
+	 *            offset 0.
+	 * @param sizeX
+	 *            the width of the planes.
+	 * @param sizeY
+	 *            the height of the planes.
+	 * @param kernel
+	 *            the conversion kernel.
+	 * @param parallel
+	 *            if <code>false</code>, everything is done on the caller
+	 *            thread.
+	 */
+	public void project( final Object[] sources, final int[] sourceOffsets, final Object[] targets, final int sizeX, final int sizeY, final ConversionKernels.Kernel kernel, final boolean parallel )
+	{
+		final ConversionKernels.Kernel[] kernels = new ConversionKernels.Kernel[ sources.length ];
+		Arrays.fill( kernels, kernel );
+		project( sources, sourceOffsets, targets, sizeX, sizeY, kernels, parallel );
+	}
+
+	/**
+	 * Converts each source plane into the target plane with the same index,
+	 * with the conversion kernel with the same index.
+	 */
+	public void project( final Object[] sources, final int[] sourceOffsets, final Object[] targets, final int sizeX, final int sizeY, final ConversionKernels.Kernel[] kernels, final boolean parallel )
+	{
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		final int nStripes = parallel ? numStripes( sizeX, sizeY ) : 1;
+		for ( int i = 0; i < sources.length; i++ )
+		{
+			final Object source = sources[ i ];
+			final int sourceOffset = sourceOffsets[ i ];
+			final Object target = targets[ i ];
+			final ConversionKernels.Kernel kernel = kernels[ i ];
+			for ( int s = 0; s < nStripes; s++ )
+			{
+				final int from = ( int ) ( ( long ) sizeY * s / nStripes ) * sizeX;
+				final int to = ( int ) ( ( long ) sizeY * ( s + 1 ) / nStripes ) * sizeX;
+				tasks.add( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						kernel.convert( source, sourceOffset + from, target, from, to - from );
+						return null;
+					}
+				} );
+			}
+		}
+		run( tasks, parallel );
+	}
+
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * Sets the maximal number of stripes a plane is split into.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		if ( numThreads < 1 )
+			throw new IllegalArgumentException( "The number of projection threads must be at least 1, got " + numThreads + "." );
+		this.numThreads = numThreads;
+	}
+
+	public int getMinStripeSize()
+	{
+		return minStripeSize;
+	}
+
+	/**
+	 * Sets the minimal number of pixels in a stripe.
+	 */
+	public void setMinStripeSize( final int minStripeSize )
+	{
+		this.minStripeSize = Math.max( 1, minStripeSize );
+	}
+
+	/**
+	 * Returns the pool shared by all the engines, so that other tasks that
+	 * project planes can run on it instead of creating their own threads.
+	 * Tasks running on it must only call the engines with
+	 * <code>parallel</code> set to <code>false</code>.
+	 */
+	static ExecutorService executor()
+	{
+		return EXECUTOR;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private static void run( final List< Callable< Void > > tasks, final boolean parallel )
+	{
+		if ( !parallel || tasks.size() == 1 )
+		{
+			for ( final Callable< Void > task : tasks )
+			{
+				try
+				{
+					task.call();
+				}
+				catch ( final RuntimeException e )
+				{
+					throw e;
+				}
+				catch ( final Exception e )
+				{
+					throw new RuntimeException( e );
+				}
+			}
+			return;
+		}
+
+		try
+		{
+			for ( final Future< Void > future : EXECUTOR.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Projection interrupted.", e );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof RuntimeException )
+				throw ( RuntimeException ) e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	private int numStripes( final long sizeX, final long sizeY )
+	{
+		final long n = Math.min( numThreads, sizeX * sizeY / minStripeSize );
+		return ( int ) Math.max( 1, Math.min( n, sizeY ) );
+	}
+
+	/**
+	 * Copies the rows <code>y0</code> (inclusive) to <code>y1</code>
+	 * (exclusive) of the source into the target.
+	 * <p>
+	 * The random access on the source is created over the stripe interval, so
+	 * that the chain of views leading to the source is collapsed into a single
+	 * transform. The loop itself runs in a copy of {@link ConvertingStripeLoop}
+	 * specific to the classes of the accesses and of the converter.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private static void copy( final RandomAccessibleInterval source, final RandomAccessibleInterval target, final Converter converter, final long y0, final long y1 )
+	{
+		final FinalInterval stripe = new FinalInterval( new long[] { 0, y0 }, new long[] { target.max( 0 ), y1 - 1 } );
+		final RandomAccess< ? > sourceAccess = source.randomAccess( stripe );
+		final RandomAccess< ? > targetAccess = target.randomAccess( stripe );
+		final Object key = Arrays.asList( sourceAccess.getClass(), targetAccess.getClass(), converter.getClass() );
+		final StripeLoop loop = LOOPS.newInstanceForKey( key, sourceAccess, targetAccess, converter );
+		loop.copy( target.dimension( 0 ), y0, y1 );
+	}
+
+	/**
+	 * Interface for the loops that copy a stripe of rows.
+	 */
+	public interface StripeLoop
+	{
+		public void copy( long sizeX, long y0, long y1 );
+	}
+
+	/**
+	 * Copies a stripe of rows through a converter. Must be public for
+	 * {@link ClassCopyProvider} to be able to load copies of it.
+	 */
+	public static class ConvertingStripeLoop< A, B > implements StripeLoop
+	{
+
+		private final RandomAccess< A > source;
+
+		private final RandomAccess< B > target;
+
+		private final Converter< A, B > converter;
+
+		public ConvertingStripeLoop( final RandomAccess< A > source, final RandomAccess< B > target, final Converter< A, B > converter )
+		{
+			this.source = source;
+			this.target = target;
+			this.converter = converter;
+		}
+
+		@Override
+		public void copy( final long sizeX, final long y0, final long y1 )
+		{
+			for ( long y = y0; y < y1; y++ )
+			{
+				source.setPosition( 0, 0 );
+				source.setPosition( y, 1 );
+				target.setPosition( 0, 0 );
+				target.setPosition( y, 1 );
+				converter.convert( source.get(), target.get() );
+				for ( long x = 1; x < sizeX; x++ )
+				{
+					source.fwd( 0 );
+					target.fwd( 0 );
+					converter.convert( source.get(), target.get() );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package plugins.tinevez.imglib2icy;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Copies a {@link RandomAccessibleInterval} into a new, regular Icy
+ * {@link Sequence}, whose images are real {@link IcyBufferedImage}s.
+ * <p>
+ * The (t, z) positions are filled in parallel, each on one thread, on the pool
+ * shared by the {@link ProjectionEngine}s or on an executor given by the
+ * caller. The source values are converted to the data type of the sequence
+ * with the {@link RealTypeConverters} rules. Progress is reported after each
+ * position, and the materialization can be canceled from any thread: it stops
+ * after the stripe of rows being copied.
+ */
+public class SequenceMaterializer< T extends RealType< T > >
+{
+
+	/**
+	 * Interface for the callback notified of the progress of a
+	 * materialization. It is called on the thread that runs
+	 * {@link SequenceMaterializer#materialize()}.
+	 */
+	public interface ProgressListener
+	{
+		public void progress( int done, int total );
+	}
+
+	public static final int DEFAULT_NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+	private final RandomAccessibleInterval< T > source;
+
+	private final DimensionArrangement arrangement;
+
+	private final DataType dataType;
+
+	private volatile boolean canceled;
+
+	private int numThreads = DEFAULT_NUM_THREADS;
+
+	private ExecutorService executor;
+
+	private ProgressListener progressListener;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates a materializer for the specified source.
+	 *
+	 * @param source
+	 *            the source.
+	 * @param arrangement
+	 *            the arrangement of the source dimensions.
+	 * @param dataType
+	 *            the data type of the sequence to create.
+	 */
+	public SequenceMaterializer( final RandomAccessibleInterval< T > source, final DimensionArrangement arrangement, final DataType dataType )
+	{
+		if ( source.numDimensions() != arrangement.numDimensions() )
+			throw new IllegalArgumentException( "Source does not have the same dimensionality that of the declared dimension arrangment. Expected "
+					+ arrangement.numDimensions() + " but got " + source.numDimensions() + "." );
+		this.source = Views.isZeroMin( source ) ? source : Views.zeroMin( source );
+		this.arrangement = arrangement;
+		this.dataType = dataType;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Creates the sequence and fills it with the source values.
+	 *
+	 * @return a new sequence.
+	 * @throws CancellationException
+	 *             if {@link #cancel()} was called before completion.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public Sequence materialize()
+	{
+		final int sizeX = ( int ) source.dimension( 0 );
+		final int sizeY = ( int ) source.dimension( 1 );
+		final int sizeC = arrangement.hasC() ? ( int ) source.dimension( arrangement.dimC() ) : 1;
+		final int sizeZ = arrangement.hasZ() ? ( int ) source.dimension( arrangement.dimZ() ) : 1;
+		final int sizeT = arrangement.hasT() ? ( int ) source.dimension( arrangement.dimT() ) : 1;
+
+		final NativeType targetType = ImgLib2IcyFunctions.getType( dataType );
+		final Converter converter = RealTypeConverters.getConverter( source.getType(), ( RealType ) targetType );
+		final ProjectionEngine engine = new ProjectionEngine();
+		final int stripeHeight = Math.max( 1, Math.min( sizeY, engine.getMinStripeSize() / Math.max( 1, sizeX ) ) );
+
+		final IcyBufferedImage[][] images = new IcyBufferedImage[ sizeT ][ sizeZ ];
+		final List< Callable< Void > > tasks = new ArrayList<>( sizeT * sizeZ );
+		for ( int t = 0; t < sizeT; t++ )
+		{
+			for ( int z = 0; z < sizeZ; z++ )
+			{
+				final int tt = t;
+				final int zz = z;
+				tasks.add( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						final Object[] data = new Object[ sizeC ];
+						final ArrayImg[] planes = new ArrayImg[ sizeC ];
+						for ( int c = 0; c < sizeC; c++ )
+						{
+							planes[ c ] = new ArrayImgFactory( targetType ).create( sizeX, sizeY );
+							data[ c ] = DirectPlanes.array( planes[ c ], 0 );
+						}
+
+						// Stripe by stripe, so that a cancellation stops within a plane.
+						for ( long y0 = 0; y0 < sizeY; y0 += stripeHeight )
+						{
+							if ( canceled )
+								return null;
+							final FinalInterval stripe = Intervals.createMinMax( 0, y0, sizeX - 1, Math.min( sizeY, y0 + stripeHeight ) - 1 );
+							final RandomAccessibleInterval< ? >[] sources = new RandomAccessibleInterval[ sizeC ];
+							final RandomAccessibleInterval< ? >[] targets = new RandomAccessibleInterval[ sizeC ];
+							for ( int c = 0; c < sizeC; c++ )
+							{
+								sources[ c ] = Views.zeroMin( Views.interval( arrangement.planeView( source, tt, zz, c ), stripe ) );
+								targets[ c ] = Views.zeroMin( Views.interval( planes[ c ], stripe ) );
+							}
+							engine.project( sources, targets, converter, false );
+						}
+						images[ tt ][ zz ] = new IcyBufferedImage( sizeX, sizeY, data, dataType.isSigned() );
+						return null;
+					}
+				} );
+			}
+		}
+
+		final ExecutorCompletionService< Void > completion = new ExecutorCompletionService<>( executor != null ? executor : ProjectionEngine.executor() );
+		final List< Future< Void > > futures = new ArrayList<>( tasks.size() );
+		try
+		{
+			// Keep a bounded number of positions in flight, so that a shared pool stays available.
+			final int total = tasks.size();
+			int submitted = 0;
+			for ( ; submitted < Math.min( total, numThreads ); submitted++ )
+				futures.add( completion.submit( tasks.get( submitted ) ) );
+
+			for ( int done = 1; done <= total; done++ )
+			{
+				completion.take().get();
+				if ( canceled )
+					throw new CancellationException( "Materialization canceled." );
+				if ( submitted < total )
+					futures.add( completion.submit( tasks.get( submitted++ ) ) );
+				if ( progressListener != null )
+					progressListener.progress( done, total );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException( "Materialization interrupted." );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof RuntimeException )
+				throw ( RuntimeException ) e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			for ( final Future< Void > future : futures )
+				future.cancel( false );
+		}
+
+		final Sequence sequence = new Sequence( source.toString() );
+		sequence.beginUpdate();
+		try
+		{
+			for ( int t = 0; t < sizeT; t++ )
+				for ( int z = 0; z < sizeZ; z++ )
+					sequence.setImage( t, z, images[ t ][ z ] );
+		}
+		finally
+		{
+			sequence.endUpdate();
+		}
+		return sequence;
+	}
+
+	/**
+	 * Requests the materialization to stop. The positions being filled stop
+	 * after their current stripe of rows, the others are skipped.
+	 */
+	public void cancel()
+	{
+		canceled = true;
+	}
+
+	public boolean isCanceled()
+	{
+		return canceled;
+	}
+
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * Sets the maximal number of positions filled at the same time.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		if ( numThreads < 1 )
+			throw new IllegalArgumentException( "The number of materialization threads must be at least 1, got " + numThreads + "." );
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Sets the executor the positions are filled on. It is not shut down. If
+	 * <code>null</code>, the default, the pool shared by the
+	 * {@link ProjectionEngine}s is used.
+	 */
+	public void setExecutor( final ExecutorService executor )
+	{
+		this.executor = executor;
+	}
+
+	public void setProgressListener( final ProgressListener progressListener )
+	{
+		this.progressListener = progressListener;
+	}
+}
@@ -1,32 +1,66 @@
 package plugins.tinevez.imglib2icy;
 
 import icy.image.IcyBufferedImage;
+import icy.image.IcyBufferedImageEvent;
+import icy.image.IcyBufferedImageEvent.IcyBufferedImageEventType;
+import icy.image.IcyBufferedImageListener;
 import icy.sequence.Sequence;
+import icy.sequence.SequenceEvent;
+import icy.sequence.SequenceListener;
 import icy.sequence.VolumetricImage;
 import icy.type.DataType;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converter;
-import net.imglib2.converter.RealFloatConverter;
 import net.imglib2.converter.RealUnsignedByteConverter;
 import net.imglib2.converter.RealUnsignedShortConverter;
-import net.imglib2.display.projector.IterableIntervalProjector2D;
+import net.imglib2.converter.TypeIdentity;
 import net.imglib2.img.array.ArrayImg;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.Type;
-import net.imglib2.type.numeric.integer.UnsignedByteType;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 
+import java.nio.Buffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class VirtualSequence extends Sequence
 {
 
+	/**
+	 * The default byte budget of the plane cache of a virtual sequence.
+	 */
+	public static final long DEFAULT_CACHE_BUDGET = 256L * 1024L * 1024L;
+
+	/**
+	 * How many of the images returned by {@link #getImage(int, int)} are kept,
+	 * so that repeated calls at the same position return the same image.
+	 */
+	public static final int NUM_KEPT_IMAGES = 8;
+
+	private static final MemoryAccounting.Accountant ACCOUNTANT = new MemoryAccounting.Accountant()
+	{
+		@Override
+		public MemoryAccounting.Usage usage( final Object object )
+		{
+			return ( ( VirtualSequence ) object ).getMemoryUsage();
+		}
+	};
+
 	public enum DimensionArrangement
 	{
 		XY( false, false, false, 0, 0, 0, 0, 0 ),
@@ -66,6 +100,45 @@ public class VirtualSequence extends Sequence
 			this.targetDimT = targetDimT;
 		}
 
+		public boolean hasC()
+		{
+			return hasC;
+		}
+
+		public boolean hasZ()
+		{
+			return hasZ;
+		}
+
+		public boolean hasT()
+		{
+			return hasT;
+		}
+
+		/**
+		 * Returns the index of the C dimension, or 0 if there is none.
+		 */
+		public int dimC()
+		{
+			return dimC;
+		}
+
+		/**
+		 * Returns the index of the Z dimension, or 0 if there is none.
+		 */
+		public int dimZ()
+		{
+			return dimZ;
+		}
+
+		/**
+		 * Returns the index of the T dimension, or 0 if there is none.
+		 */
+		public int dimT()
+		{
+			return dimT;
+		}
+
 		public int numDimensions()
 		{
 			int ndims = 2;
@@ -128,11 +201,50 @@ public class VirtualSequence extends Sequence
 				return this;
 			}
 		}
+
+		/**
+		 * Returns the 2D view of the specified image, whose dimensions follow
+		 * this arrangement, at the specified position. We slice the highest
+		 * dimensions first so that the dimension indices of the arrangement
+		 * stay valid.
+		 */
+		public < T > RandomAccessibleInterval< T > planeView( final RandomAccessibleInterval< T > rai, final int t, final int z, final int c )
+		{
+			RandomAccessibleInterval< T > view = rai;
+			if ( hasT )
+				view = Views.hyperSlice( view, dimT, t );
+			if ( hasZ )
+				view = Views.hyperSlice( view, dimZ, z );
+			if ( hasC )
+				view = Views.hyperSlice( view, dimC, c );
+			return view;
+		}
 	}
 
+	/**
+	 * The image at (0, 0), that defines the structure of the sequence.
+	 */
 	private final IcyBufferedImage image;
 
-	private final VolumetricImage volumetricImage;
+	/**
+	 * The images most recently returned, keyed by position, in access order.
+	 */
+	private final LinkedHashMap< Long, IcyBufferedImage > images = new LinkedHashMap< Long, IcyBufferedImage >( 16, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< Long, IcyBufferedImage > eldest )
+		{
+			return size() > NUM_KEPT_IMAGES;
+		}
+	};
+
+	/**
+	 * The positions being loaded, so that concurrent requests for the same
+	 * position load it only once.
+	 */
+	private final ConcurrentHashMap< Long, FutureTask< IcyBufferedImage > > loading = new ConcurrentHashMap<>();
 
 	private final int minZ;
 
@@ -142,10 +254,6 @@ public class VirtualSequence extends Sequence
 
 	private final int sizeT;
 
-	private int previousT = -1;
-
-	private int previousZ = -1;
-
 	private final int sizeX;
 
 	private final int sizeY;
@@ -154,21 +262,129 @@ public class VirtualSequence extends Sequence
 
 	private final int sizeC;
 
+	private final RandomAccessibleInterval<?> source;
+
+	private final PlaneCache cache;
+
+	private final PlanePrefetcher prefetcher;
+
+	private final ProjectionEngine engine;
+
+	/**
+	 * The zero-min view of the source.
+	 */
 	@SuppressWarnings( "rawtypes" )
-	private final IterableIntervalProjector2D[] projectors;
+	private final RandomAccessibleInterval rai;
 
-	private final RandomAccessibleInterval<?> source;
+	@SuppressWarnings( "rawtypes" )
+	private final Converter converter;
+
+	/**
+	 * The bulk conversion kernels, one per channel, used when the source
+	 * planes are stored in primitive arrays.
+	 */
+	private final ConversionKernels.Kernel[] kernels;
+
+	/**
+	 * Whether the source is made of packed ARGB values, unpacked in one
+	 * channel per component.
+	 */
+	private final boolean argb;
+
+	/**
+	 * Whether the source planes are stored in primitive arrays.
+	 */
+	private final boolean direct;
+
+	/**
+	 * Whether the images of this sequence use the arrays of the source
+	 * directly.
+	 */
+	private final boolean zeroCopy;
+
+	private final DataType dataType;
+
+	/**
+	 * The display settings given at construction, to create sequences over
+	 * views of the source that show them the same way.
+	 */
+	private final DataType displayType;
+
+	private final double displayMin;
+
+	private final double displayMax;
+
+	/**
+	 * The planes modified since they were last written back to the source,
+	 * keyed by linear plane index.
+	 */
+	private final ConcurrentHashMap< Long, Object > dirty = new ConcurrentHashMap<>();
+
+	private final Object flushLock = new Object();
+
+	private volatile boolean writeBack;
 
 	/*
 	 * CONSTRUCTOR
 	 */
 
-	@SuppressWarnings( { "rawtypes", "unchecked" } )
 	public VirtualSequence( final RandomAccessibleInterval< ? > source, final DimensionArrangement arrangement )
+	{
+		this( source, arrangement, null, 0., 0., false );
+	}
+
+	/**
+	 * Creates a virtual sequence that displays an {@link ARGBType} source as
+	 * an unsigned byte sequence with one channel per color component: red,
+	 * green, blue, and optionally alpha. The arrangement cannot have a C
+	 * dimension.
+	 *
+	 * @param source
+	 *            the source.
+	 * @param arrangement
+	 *            the arrangement of the source dimensions.
+	 * @param withAlpha
+	 *            if <code>true</code>, the alpha component is displayed as a
+	 *            fourth channel.
+	 */
+	public VirtualSequence( final RandomAccessibleInterval< ARGBType > source, final DimensionArrangement arrangement, final boolean withAlpha )
+	{
+		this( source, arrangement, null, 0., 0., withAlpha );
+	}
+
+	/**
+	 * Creates a virtual sequence that displays a {@link FloatType} source with
+	 * the specified data type. Source values in the specified display range
+	 * are mapped linearly to the full range of the data type.
+	 *
+	 * @param source
+	 *            the source.
+	 * @param arrangement
+	 *            the arrangement of the source dimensions.
+	 * @param displayType
+	 *            the data type of the sequence. For {@link FloatType} sources,
+	 *            can be {@link DataType#UBYTE}, {@link DataType#USHORT} or
+	 *            {@link DataType#FLOAT}. If <code>null</code>, the data type
+	 *            matching the source type is used.
+	 * @param displayMin
+	 *            the source value mapped to 0.
+	 * @param displayMax
+	 *            the source value mapped to the max of the data type.
+	 */
+	public VirtualSequence( final RandomAccessibleInterval< ? > source, final DimensionArrangement arrangement, final DataType displayType, final double displayMin, final double displayMax )
+	{
+		this( source, arrangement, displayType, displayMin, displayMax, false );
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private VirtualSequence( final RandomAccessibleInterval< ? > source, final DimensionArrangement arrangement, final DataType displayType, final double displayMin, final double displayMax, final boolean withAlpha )
 	{
 		super( source.toString() + " - " + arrangement );
 		this.arrangement = arrangement;
 		this.source = source;
+		this.displayType = displayType;
+		this.displayMin = displayMin;
+		this.displayMax = displayMax;
 
 		if ( source.numDimensions() != arrangement.numDimensions() )
 		{ throw new IllegalArgumentException( "Source does not have the same dimensionality that of the declared dimension arrangment. Expected "
@@ -199,7 +415,20 @@ public class VirtualSequence extends Sequence
 			sizeT = 1;
 		}
 
-		if ( arrangement.hasC )
+		//final Type rawType = ( Type ) Util.getTypeFromInterval( source );
+		final Type rawType = ( Type ) source.getType();
+		if ( !( rawType instanceof NativeType ) ) { throw new IllegalArgumentException( "Non-native types are unsupported, got : " + rawType ); }
+
+		final NativeType rt = ( NativeType ) rawType;
+		argb = rt instanceof ARGBType;
+
+		if ( argb )
+		{
+			if ( arrangement.hasC )
+				throw new IllegalArgumentException( "ARGB sources cannot have a C dimension, got " + arrangement + "." );
+			sizeC = withAlpha ? 4 : 3;
+		}
+		else if ( arrangement.hasC )
 		{
 			sizeC = ( int ) source.dimension( arrangement.dimC );
 		}
@@ -208,137 +437,650 @@ public class VirtualSequence extends Sequence
 			sizeC = 1;
 		}
 
-		//final Type rawType = ( Type ) Util.getTypeFromInterval( source );
-		final Type rawType = ( Type ) source.getType();
-		if ( !( rawType instanceof NativeType ) ) { throw new IllegalArgumentException( "Non-native types are unsupported, got : " + rawType ); }
-
-		final NativeType rt = ( NativeType ) rawType;
-		final NativeType type;
-		final DataType dataType;
-		final Converter< ?, NativeType > converter;
-		final boolean signed;
-
-		if ( rt instanceof UnsignedByteType )
+		final DataType nativeType = ImgLib2IcyFunctions.getDataType( rt );
+		if ( argb )
 		{
-			type = new UnsignedByteType();
-			converter = new RealUnsignedByteConverter( 0, 255 );
-			signed = false;
+			/*
+			 * The packed planes are copied as they are, then each component
+			 * is extracted in its channel.
+			 */
+			converter = new TypeIdentity();
+			kernels = new ConversionKernels.Kernel[ sizeC ];
+			final int[] shifts = new int[] { 16, 8, 0, 24 };
+			for ( int c = 0; c < sizeC; c++ )
+				kernels[ c ] = ConversionKernels.argbToUnsignedByte( shifts[ c ] );
 			dataType = DataType.UBYTE;
 		}
-		else if ( rt instanceof UnsignedShortType )
+		else if ( nativeType == null )
 		{
-			type = new UnsignedShortType();
-			converter = new RealUnsignedShortConverter( 0, 65535 );
-			signed = false;
-			dataType = DataType.USHORT;
+			throw new IllegalArgumentException( "Unsupported data type: " + rt );
+		}
+		else if ( displayType == null || displayType == nativeType )
+		{
+			/*
+			 * The sequence stores the source values as they are: plain copies,
+			 * no conversion.
+			 */
+			converter = new TypeIdentity();
+			kernels = kernels( DirectPlanes.isBuffered( source ) ? ConversionKernels.BUFFER_COPY : ConversionKernels.COPY );
+			dataType = nativeType;
 		}
-		else if ( rt instanceof FloatType )
+		else if ( nativeType == DataType.FLOAT && displayType == DataType.UBYTE )
 		{
-			type = new FloatType();
-			converter = new RealFloatConverter();
-			signed = false;
-			dataType = DataType.FLOAT;
+			converter = new RealUnsignedByteConverter( displayMin, displayMax );
+			kernels = kernels( ConversionKernels.floatToUnsignedByte( displayMin, displayMax ) );
+			dataType = DataType.UBYTE;
+		}
+		else if ( nativeType == DataType.FLOAT && displayType == DataType.USHORT )
+		{
+			converter = new RealUnsignedShortConverter( displayMin, displayMax );
+			kernels = kernels( ConversionKernels.floatToUnsignedShort( displayMin, displayMax ) );
+			dataType = DataType.USHORT;
 		}
 		else
 		{
-			throw new IllegalArgumentException( "Unsupported data type: " + rt );
+			throw new IllegalArgumentException( "Unsupported data type: " + rt + " displayed as " + displayType );
 		}
+		// Buffered planes, for instance memory-mapped, are copied in bulk.
+		direct = DirectPlanes.isDirect( source ) || kernels[ 0 ] == ConversionKernels.BUFFER_COPY;
+		zeroCopy = kernels[ 0 ] == ConversionKernels.COPY && DirectPlanes.isWholePlanes( source );
 
-		final RandomAccessibleInterval< ? > rai = Views.isZeroMin( source ) ? source : Views.zeroMin( source );
+		rai = Views.isZeroMin( source ) ? source : Views.zeroMin( source );
 
-		this.projectors = new IterableIntervalProjector2D[ sizeC ];
-
-		if ( arrangement.hasC )
+		engine = new ProjectionEngine();
+		cache = new PlaneCache( DEFAULT_CACHE_BUDGET );
+		cache.setEvictionListener( new PlaneCache.EvictionListener()
 		{
-			/*
-			 * Multi C image -> We make a composite out of it. The resulting
-			 * IcyBufferedImage will NOT be virtual: it will have all channels
-			 * in memory at once, and all channels will be mapped. I feel like
-			 * it is a reasonable choice (sizeC is typically small compared to
-			 * sizeT or sizeZ).
-			 */
-			image = new IcyBufferedImage( sizeX, sizeY, sizeC, dataType );
-			for ( int c = 0; c < sizeC; c++ )
+			@Override
+			public void evicting( final int t, final int z, final int c, final Object data )
+			{
+				// Only the evicted plane, so that the thread filling the cache does not wait for a full flush.
+				if ( dirty.remove( Long.valueOf( planeKey( t, z, c ) ), data ) )
+					engine.project( new RandomAccessibleInterval[] { wrapPlane( data ) }, new RandomAccessibleInterval[] { planeView( t, z, c ) }, converter, false );
+			}
+		} );
+		prefetcher = new PlanePrefetcher( sizeT, sizeZ, new PlanePrefetcher.Loader()
+		{
+			@Override
+			public void load( final int t, final int z )
+			{
+				prefetch( t, z );
+			}
+		} );
+		addListener( new SequenceListener()
+		{
+			@Override
+			public void sequenceChanged( final SequenceEvent sequenceEvent )
+			{}
+
+			@Override
+			public void sequenceClosed( final Sequence sequence )
 			{
-				final long[] targetDims = new long[] { sizeX, sizeY };
-				final ArrayImg img;
-				switch ( dataType )
+				flush();
+				prefetcher.shutdown();
+				cache.clear();
+				synchronized ( images )
 				{
-				/*
-				 * We need to expose the actual primitive array, with the right
-				 * class, so we have to treat case by case.
-				 */
-				case FLOAT:
-					img = ArrayImgs.floats( image.getDataXYAsFloat( c ), targetDims );
-					break;
-				case UBYTE:
-					img = ArrayImgs.unsignedBytes( image.getDataXYAsByte( c ), targetDims );
-					break;
-				case USHORT:
-					img = ArrayImgs.unsignedShorts( image.getDataXYAsShort( c ), targetDims );
-					break;
-				default:
-					throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+					images.clear();
 				}
-
-				final RandomAccessibleInterval slice = Views.hyperSlice( rai, arrangement.dimC, c );
-				final IterableIntervalProjector2D projector = new IterableIntervalProjector2D( 0, 1, slice, img, converter );
-				projector.map();
-				projectors[ c ] = projector;
+				MemoryAccounting.unregister( VirtualSequence.this );
 			}
-		}
-		else
-		{
-			//final ArrayImg img = new ArrayImgFactory().create( new long[] { sizeX, sizeY }, type );
-			final ArrayImg img = new ArrayImgFactory(type).create(sizeX, sizeY);
-			final IterableIntervalProjector2D projector = new IterableIntervalProjector2D( 0, 1, rai, img, converter );
-			projector.map();
-			projectors[ 0 ] = projector;
+		} );
+		MemoryAccounting.register( this, ACCOUNTANT );
 
-			final Object data = ( ( ArrayDataAccess< ? > ) img.update( null ) ).getCurrentStorageArray();
-			image = new IcyBufferedImage( sizeX, sizeY, data, signed );
-		}
+		image = getImage( 0, 0 );
 		onImageAdded( image );
-
-		volumetricImage = new VirtualVolumetricImage();
 	}
 
 	/*
 	 * METHODS
 	 */
 
+	/**
+	 * Returns the image at the specified position. Each position has its own
+	 * image, so this method can be called concurrently for different
+	 * positions. Concurrent calls for the same position load it once.
+	 * <p>
+	 * When the source is a {@link PlanarImg}, or an {@link ArrayImg} made of a
+	 * single plane, and its type matches the data type of this sequence, the
+	 * returned image uses the arrays of the source directly: there is no copy,
+	 * and modifying the image modifies the source. Otherwise, the returned
+	 * image shares its pixel arrays with the plane cache. When it notifies a
+	 * data change and write-back is disabled, its modified planes are removed
+	 * from the cache, so that the modifications stay in this image only and
+	 * the planes are projected again from the source for later images.
+	 *
+	 * @see #setWriteBack(boolean)
+	 */
 	@Override
 	public IcyBufferedImage getImage( final int t, final int z )
 	{
-		if ( previousT != t || previousZ != z )
+		if ( !Metrics.timingGetImage() )
+			return fetchImage( t, z );
+
+		final long start = System.nanoTime();
+		try
+		{
+			return fetchImage( t, z );
+		}
+		finally
 		{
-			for ( @SuppressWarnings( "rawtypes" )
-			final IterableIntervalProjector2D projector : projectors )
+			Metrics.imageFetched( this, t, z, System.nanoTime() - start );
+		}
+	}
+
+	private IcyBufferedImage fetchImage( final int t, final int z )
+	{
+		final Long key = Long.valueOf( ( ( long ) t << 32 ) | ( z & 0xffffffffL ) );
+		synchronized ( images )
+		{
+			final IcyBufferedImage img = images.get( key );
+			if ( img != null )
 			{
-				projector.setPosition( z, arrangement.targetDimZ );
-				projector.setPosition( t, arrangement.targetDimT );
-				projector.map();
+				// Scrubbing over kept images still moves the prefetch window.
+				if ( !zeroCopy )
+				{
+					prefetcher.prefetch( t, z );
+					if ( Metrics.collecting() )
+						Metrics.keptImageHit();
+				}
+				return img;
 			}
-			previousT = t;
-			previousZ = z;
 		}
-		return image;
+
+		final FutureTask< IcyBufferedImage > task = new FutureTask<>( new Callable< IcyBufferedImage >()
+		{
+			@Override
+			public IcyBufferedImage call() throws Exception
+			{
+				return load( t, z );
+			}
+		} );
+		final FutureTask< IcyBufferedImage > running = loading.putIfAbsent( key, task );
+		if ( running != null )
+			return get( running );
+
+		try
+		{
+			task.run();
+			final IcyBufferedImage img = get( task );
+			synchronized ( images )
+			{
+				images.put( key, img );
+			}
+			if ( !zeroCopy )
+				prefetcher.prefetch( t, z );
+			return img;
+		}
+		finally
+		{
+			loading.remove( key, task );
+		}
+	}
+
+	/**
+	 * Sets whether the modifications of the images of this sequence are
+	 * written back to the source.
+	 * <p>
+	 * When enabled, the planes of an image are marked dirty when the image
+	 * notifies a data change, as Icy tools do after modifying it. Dirty planes
+	 * are written back in one batch by {@link #flush()}, which is called when
+	 * write-back is disabled and when the sequence is closed. A dirty plane
+	 * evicted from the cache is written back alone, on the thread that evicts
+	 * it. Dirty planes are never projected again from the source before they
+	 * are written back.
+	 * <p>
+	 * Write-back is only supported when the sequence shows the source values
+	 * without conversion. The source must be writable. When the images use the
+	 * arrays of the source directly, modifications go to the source anyway.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the source values are converted for display, or if the
+	 *             source is stored in read-only buffers, as the images opened
+	 *             by {@link MappedImgs#open}.
+	 */
+	public void setWriteBack( final boolean writeBack )
+	{
+		if ( writeBack && ( argb || !( converter instanceof TypeIdentity ) ) )
+			throw new UnsupportedOperationException( "Write-back is not supported when the source values are converted for display." );
+		if ( writeBack && DirectPlanes.isBuffered( source ) && ( ( Buffer ) DirectPlanes.array( source, 0 ) ).isReadOnly() )
+			throw new UnsupportedOperationException( "Write-back is not supported on a read-only source. Map the file read-write with MappedImgs.map or MappedImgs.create." );
+		this.writeBack = writeBack;
+		if ( !writeBack )
+			flush();
+	}
+
+	public boolean isWriteBack()
+	{
+		return writeBack;
+	}
+
+	/**
+	 * Writes the dirty planes back to the source.
+	 */
+	public void flush()
+	{
+		synchronized ( flushLock )
+		{
+			if ( dirty.isEmpty() )
+				return;
+
+			final List< RandomAccessibleInterval< ? > > sources = new ArrayList<>();
+			final List< RandomAccessibleInterval< ? > > targets = new ArrayList<>();
+			for ( final Map.Entry< Long, Object > entry : dirty.entrySet() )
+			{
+				// Removed first, so that a modification made during the flush marks the plane again.
+				if ( !dirty.remove( entry.getKey(), entry.getValue() ) )
+					continue;
+				final long key = entry.getKey().longValue();
+				final int c = ( int ) ( key % sizeC );
+				final int z = ( int ) ( key / sizeC % sizeZ );
+				final int t = ( int ) ( key / sizeC / sizeZ );
+				sources.add( wrapPlane( entry.getValue() ) );
+				targets.add( planeView( t, z, c ) );
+			}
+			engine.project( sources.toArray( new RandomAccessibleInterval[ 0 ] ), targets.toArray( new RandomAccessibleInterval[ 0 ] ), converter, true );
+		}
+	}
+
+	/**
+	 * Forgets the planes projected so far, after the source was modified
+	 * other than through this sequence, so that they are projected again from
+	 * the source. Dirty planes are written back first.
+	 */
+	public void invalidate()
+	{
+		flush();
+		prefetcher.cancelAll();
+		cache.clear();
+		synchronized ( images )
+		{
+			images.clear();
+		}
 	}
 
 	@Override
 	public VolumetricImage getVolumetricImage( final int t )
 	{
-		if ( t != previousT )
+		return new VirtualVolumetricImage( t );
+	}
+
+	/**
+	 * Returns the image with the content of the source at the specified
+	 * position, built from the plane cache if possible.
+	 */
+	private IcyBufferedImage load( final int t, final int z )
+	{
+		final Object[] data = new Object[ sizeC ];
+		if ( zeroCopy )
+		{
+			for ( int c = 0; c < sizeC; c++ )
+				data[ c ] = DirectPlanes.array( source, planeIndex( t, z, c ) );
+			return new IcyBufferedImage( sizeX, sizeY, data, dataType.isSigned() );
+		}
+
+		prefetcher.await( t, z );
+		final int[] missing = new int[ sizeC ];
+		int nMissing = 0;
+		for ( int c = 0; c < sizeC; c++ )
+		{
+			// A dirty plane has the latest content, whatever the cache holds, and is not projected again.
+			final Object modified = dirty.get( Long.valueOf( planeKey( t, z, c ) ) );
+			if ( modified != null )
+			{
+				data[ c ] = modified;
+				if ( cache.get( t, z, c ) != modified )
+					cache.put( t, z, c, modified );
+				continue;
+			}
+			data[ c ] = cache.get( t, z, c );
+			if ( data[ c ] == null )
+				missing[ nMissing++ ] = c;
+		}
+		if ( Metrics.collecting() )
+			Metrics.cacheLookups( sizeC - nMissing, nMissing );
+
+		if ( nMissing > 0 )
+		{
+			final int[] channels = Arrays.copyOf( missing, nMissing );
+			final Object[] targets = new Object[ nMissing ];
+			for ( int i = 0; i < nMissing; i++ )
+				targets[ i ] = newPlane();
+			project( t, z, channels, targets, true );
+			for ( int i = 0; i < nMissing; i++ )
+			{
+				data[ channels[ i ] ] = targets[ i ];
+				cacheProjected( t, z, channels[ i ], targets[ i ] );
+			}
+		}
+
+		final IcyBufferedImage img = new IcyBufferedImage( sizeX, sizeY, data, dataType.isSigned() );
+		img.addListener( new IcyBufferedImageListener()
+		{
+			@Override
+			public void imageChanged( final IcyBufferedImageEvent e )
+			{
+				if ( e.getType() != IcyBufferedImageEventType.DATA_CHANGED )
+					return;
+				if ( writeBack )
+					markDirty( t, z, img, e.getParam() );
+				else
+					uncache( t, z, img, e.getParam() );
+			}
+		} );
+		return img;
+	}
+
+	/**
+	 * Marks the specified channel of the image at (t, z) dirty, or all its
+	 * channels if the channel is out of range.
+	 */
+	private void markDirty( final int t, final int z, final IcyBufferedImage img, final int channel )
+	{
+		for ( int c = 0; c < sizeC; c++ )
+		{
+			if ( channel >= 0 && channel < sizeC && c != channel )
+				continue;
+			dirty.put( Long.valueOf( planeKey( t, z, c ) ), img.getDataXY( c ) );
+		}
+	}
+
+	/**
+	 * Removes the planes of the image at (t, z) from the cache, if they are
+	 * still the ones cached, for the specified channel or all of them if the
+	 * channel is out of range.
+	 */
+	private void uncache( final int t, final int z, final IcyBufferedImage img, final int channel )
+	{
+		for ( int c = 0; c < sizeC; c++ )
+		{
+			if ( channel >= 0 && channel < sizeC && c != channel )
+				continue;
+			cache.remove( t, z, c, img.getDataXY( c ) );
+		}
+	}
+
+	private long planeKey( final int t, final int z, final int c )
+	{
+		return ( ( long ) t * sizeZ + z ) * sizeC + c;
+	}
+
+	private static IcyBufferedImage get( final FutureTask< IcyBufferedImage > task )
+	{
+		try
+		{
+			return task.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while loading a plane.", e );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof RuntimeException )
+				throw ( RuntimeException ) e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * Returns a new primitive array that can store a plane of this sequence.
+	 */
+	private Object newPlane()
+	{
+		final int size = sizeX * sizeY;
+		switch ( dataType )
+		{
+		case BYTE:
+		case UBYTE:
+			return new byte[ size ];
+		case SHORT:
+		case USHORT:
+			return new short[ size ];
+		case INT:
+		case UINT:
+			return new int[ size ];
+		case LONG:
+		case ULONG:
+			return new long[ size ];
+		case FLOAT:
+			return new float[ size ];
+		case DOUBLE:
+			return new double[ size ];
+		default:
+			throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
+
+	/**
+	 * Called on the prefetcher threads. Projects the planes at the specified
+	 * position that are not in the cache yet, and stores them in the cache.
+	 */
+	private void prefetch( final int t, final int z )
+	{
+		for ( int c = 0; c < sizeC; c++ )
+		{
+			if ( cache.get( t, z, c ) != null || dirty.containsKey( Long.valueOf( planeKey( t, z, c ) ) ) )
+				continue;
+			final Object data = newPlane();
+			project( t, z, new int[] { c }, new Object[] { data }, false );
+			cacheProjected( t, z, c, data );
+		}
+	}
+
+	/**
+	 * Stores a plane just projected from the source in the cache, unless the
+	 * plane at this position became dirty during the projection: the
+	 * projection is then stale. Checked again after the put, so that a plane
+	 * marked dirty concurrently never leaves a stale projection in the
+	 * cache.
+	 */
+	private void cacheProjected( final int t, final int z, final int c, final Object data )
+	{
+		final Long key = Long.valueOf( planeKey( t, z, c ) );
+		if ( dirty.containsKey( key ) )
+			return;
+		cache.put( t, z, c, data );
+		if ( dirty.containsKey( key ) )
+			cache.remove( t, z, c, data );
+	}
+
+	/**
+	 * Projects the specified channels of the source at the specified position
+	 * into the specified arrays. Can be called concurrently.
+	 */
+	private void project( final int t, final int z, final int[] channels, final Object[] targets, final boolean parallel )
+	{
+		if ( !Metrics.collecting() )
+		{
+			projectPlanes( t, z, channels, targets, parallel );
+			return;
+		}
+
+		final long start = System.nanoTime();
+		projectPlanes( t, z, channels, targets, parallel );
+		Metrics.planesProjected( channels.length, ( long ) channels.length * sizeX * sizeY * dataType.getSize(), System.nanoTime() - start );
+	}
+
+	private void projectPlanes( final int t, final int z, final int[] channels, final Object[] targets, final boolean parallel )
+	{
+		if ( direct )
 		{
-			for ( @SuppressWarnings( "rawtypes" )
-			final IterableIntervalProjector2D projector : projectors )
+			final Object[] arrays = new Object[ channels.length ];
+			final int[] offsets = new int[ channels.length ];
+			for ( int i = 0; i < channels.length; i++ )
 			{
-				projector.setPosition( t, arrangement.targetDimT );
-				projector.map();
+				final long planeIndex = planeIndex( t, z, channels[ i ] );
+				arrays[ i ] = DirectPlanes.array( source, planeIndex );
+				offsets[ i ] = DirectPlanes.offset( source, planeIndex );
 			}
-			previousT = t;
+			engine.project( arrays, offsets, targets, sizeX, sizeY, selectKernels( channels ), parallel );
+			return;
+		}
+
+		if ( argb )
+		{
+			// Copy the packed plane once, then unpack the channels from it.
+			final int[] packed = new int[ sizeX * sizeY ];
+			engine.project( new RandomAccessibleInterval[] { planeView( t, z, 0 ) }, new RandomAccessibleInterval[] { ArrayImgs.argbs( packed, sizeX, sizeY ) }, converter, parallel );
+			final Object[] arrays = new Object[ channels.length ];
+			Arrays.fill( arrays, packed );
+			engine.project( arrays, new int[ channels.length ], targets, sizeX, sizeY, selectKernels( channels ), parallel );
+			return;
+		}
+
+		final RandomAccessibleInterval< ? >[] sources = new RandomAccessibleInterval[ channels.length ];
+		final RandomAccessibleInterval< ? >[] targetImgs = new RandomAccessibleInterval[ channels.length ];
+		for ( int i = 0; i < channels.length; i++ )
+		{
+			sources[ i ] = planeView( t, z, channels[ i ] );
+			targetImgs[ i ] = wrapPlane( targets[ i ] );
+		}
+		engine.project( sources, targetImgs, converter, parallel );
+	}
+
+	private ConversionKernels.Kernel[] selectKernels( final int[] channels )
+	{
+		final ConversionKernels.Kernel[] selected = new ConversionKernels.Kernel[ channels.length ];
+		for ( int i = 0; i < channels.length; i++ )
+			selected[ i ] = kernels[ channels[ i ] ];
+		return selected;
+	}
+
+	private ConversionKernels.Kernel[] kernels( final ConversionKernels.Kernel kernel )
+	{
+		final ConversionKernels.Kernel[] array = new ConversionKernels.Kernel[ sizeC ];
+		Arrays.fill( array, kernel );
+		return array;
+	}
+
+	/**
+	 * Returns the linear index of the plane of the source at the specified
+	 * position.
+	 */
+	private long planeIndex( final int t, final int z, final int c )
+	{
+		final long[] position = new long[ source.numDimensions() ];
+		if ( arrangement.hasC )
+			position[ arrangement.dimC ] = c;
+		if ( arrangement.hasZ )
+			position[ arrangement.dimZ ] = z;
+		if ( arrangement.hasT )
+			position[ arrangement.dimT ] = t;
+		return DirectPlanes.planeIndex( source, position );
+	}
+
+	/**
+	 * Returns the 2D view of the source at the specified position.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private RandomAccessibleInterval< ? > planeView( final int t, final int z, final int c )
+	{
+		return arrangement.planeView( ( RandomAccessibleInterval< Object > ) rai, t, z, c );
+	}
+
+	/**
+	 * Wraps a plane array in an {@link ArrayImg}. We need to expose the actual
+	 * primitive array, with the right class, so we have to treat case by case.
+	 */
+	@SuppressWarnings( "rawtypes" )
+	private ArrayImg wrapPlane( final Object data )
+	{
+		switch ( dataType )
+		{
+		case BYTE:
+			return ArrayImgs.bytes( ( byte[] ) data, sizeX, sizeY );
+		case UBYTE:
+			return ArrayImgs.unsignedBytes( ( byte[] ) data, sizeX, sizeY );
+		case SHORT:
+			return ArrayImgs.shorts( ( short[] ) data, sizeX, sizeY );
+		case USHORT:
+			return ArrayImgs.unsignedShorts( ( short[] ) data, sizeX, sizeY );
+		case INT:
+			return ArrayImgs.ints( ( int[] ) data, sizeX, sizeY );
+		case UINT:
+			return ArrayImgs.unsignedInts( ( int[] ) data, sizeX, sizeY );
+		case LONG:
+			return ArrayImgs.longs( ( long[] ) data, sizeX, sizeY );
+		case ULONG:
+			return ArrayImgs.unsignedLongs( ( long[] ) data, sizeX, sizeY );
+		case FLOAT:
+			return ArrayImgs.floats( ( float[] ) data, sizeX, sizeY );
+		case DOUBLE:
+			return ArrayImgs.doubles( ( double[] ) data, sizeX, sizeY );
+		default:
+			throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
+
+	/**
+	 * Returns the memory used by this sequence. When its images use the
+	 * arrays of the source directly, all the planes are shared with the
+	 * source. Otherwise, the planes in the plane cache are counted as cached,
+	 * and the planes evicted from the cache but still held by recently
+	 * returned images or waiting to be written back are counted as owned.
+	 *
+	 * @see MemoryAccounting
+	 */
+	public MemoryAccounting.Usage getMemoryUsage()
+	{
+		if ( zeroCopy )
+			return new MemoryAccounting.Usage( 0, ( long ) sizeX * sizeY * dataType.getSize() * sizeC * sizeZ * sizeT, 0, source );
+
+		final Set< Object > cached = cache.planes();
+		final Set< Object > pinned = Collections.newSetFromMap( new IdentityHashMap< Object, Boolean >() );
+		synchronized ( images )
+		{
+			for ( final IcyBufferedImage img : images.values() )
+				for ( int c = 0; c < sizeC; c++ )
+					pinned.add( img.getDataXY( c ) );
 		}
-		return volumetricImage;
+		pinned.addAll( dirty.values() );
+		pinned.removeAll( cached );
+
+		long owned = 0;
+		for ( final Object plane : pinned )
+			owned += PlaneCache.sizeOf( plane );
+		return new MemoryAccounting.Usage( owned, 0, cache.getBytes(), null );
+	}
+
+	/**
+	 * Returns the arrangement of the dimensions of the source.
+	 */
+	public DimensionArrangement getArrangement()
+	{
+		return arrangement;
+	}
+
+	/**
+	 * Returns the engine that projects the source planes. Its number of
+	 * threads can be configured.
+	 */
+	public ProjectionEngine getProjectionEngine()
+	{
+		return engine;
+	}
+
+	/**
+	 * Returns the prefetcher that projects the planes around the last
+	 * requested position on worker threads. Its depth, number of threads and
+	 * cancellation policy can be configured.
+	 */
+	public PlanePrefetcher getPrefetcher()
+	{
+		return prefetcher;
+	}
+
+	/**
+	 * Returns the cache that stores the planes of this sequence that were
+	 * recently projected. Its budget can be configured with
+	 * {@link PlaneCache#setBudget(long)}, and the budget shared by all the
+	 * virtual sequences with {@link PlaneCache#setGlobalBudget(long)}.
+	 */
+	public PlaneCache getCache()
+	{
+		return cache;
 	}
 
 	@Override
@@ -392,12 +1134,30 @@ public class VirtualSequence extends Sequence
 		return source;
 	}
 
+	/**
+	 * Returns a new virtual sequence over the specified view of the source of
+	 * this sequence, whose dimensions follow the specified arrangement, and
+	 * that shows its values like this sequence.
+	 */
+	VirtualSequence derive( final RandomAccessibleInterval< ? > view, final DimensionArrangement arrangement )
+	{
+		return new VirtualSequence( view, arrangement, displayType, displayMin, displayMax, argb && sizeC == 4 );
+	}
+
 	/*
 	 * VIRTUAL VOLUMETRIC IMAGE.
 	 */
 
 	private class VirtualVolumetricImage extends VolumetricImage
 	{
+
+		private final int t;
+
+		public VirtualVolumetricImage( final int t )
+		{
+			this.t = t;
+		}
+
 		@Override
 		public ArrayList< IcyBufferedImage > getAllImage() throws UnsupportedOperationException
 		{
@@ -413,17 +1173,7 @@ public class VirtualSequence extends Sequence
 		@Override
 		public IcyBufferedImage getImage( final int z )
 		{
-			if ( previousZ != z )
-			{
-				for ( @SuppressWarnings( "rawtypes" )
-				final IterableIntervalProjector2D projector : projectors )
-				{
-					projector.setPosition( z, arrangement.targetDimZ );
-					projector.map();
-				}
-				previousZ = z;
-			}
-			return image;
+			return VirtualSequence.this.getImage( t, z );
 		}
 
 		@Override
@@ -0,0 +1,117 @@
+package plugins.tinevez.imglib2icy;
+
+import icy.sequence.Sequence;
+import icy.sequence.SequenceEvent;
+import icy.sequence.SequenceEvent.SequenceEventSourceType;
+import icy.sequence.SequenceListener;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps the images wrapped over each sequence, so that wrapping the same
+ * sequence again returns the same image while the sequence is unchanged.
+ * <p>
+ * Sequences are weakly referenced. The images of a sequence are forgotten
+ * when it notifies a data or type change, and when it is closed. Each change
+ * increments the generation of the sequence, so that an image wrapped
+ * concurrently with a change is not cached.
+ */
+final class WrappedImgCache
+{
+
+	private static final Map< Sequence, Entry > ENTRIES = new WeakHashMap<>();
+
+	/**
+	 * Shared by all the sequences, so that it does not reference any of them.
+	 */
+	private static final SequenceListener LISTENER = new SequenceListener()
+	{
+		@Override
+		public void sequenceChanged( final SequenceEvent sequenceEvent )
+		{
+			final SequenceEventSourceType sourceType = sequenceEvent.getSourceType();
+			if ( sourceType == SequenceEventSourceType.SEQUENCE_DATA || sourceType == SequenceEventSourceType.SEQUENCE_TYPE )
+				invalidate( sequenceEvent.getSequence() );
+		}
+
+		@Override
+		public void sequenceClosed( final Sequence sequence )
+		{
+			synchronized ( ENTRIES )
+			{
+				ENTRIES.remove( sequence );
+			}
+			sequence.removeListener( this );
+		}
+	};
+
+	/**
+	 * Returns the current generation of the specified sequence, and starts
+	 * listening to its changes.
+	 */
+	static long generation( final Sequence sequence )
+	{
+		synchronized ( ENTRIES )
+		{
+			Entry entry = ENTRIES.get( sequence );
+			if ( entry == null )
+			{
+				entry = new Entry();
+				ENTRIES.put( sequence, entry );
+				sequence.addListener( LISTENER );
+			}
+			return entry.generation;
+		}
+	}
+
+	/**
+	 * Returns the image stored for the specified sequence and key, or
+	 * <code>null</code> if there is none.
+	 */
+	static Object get( final Sequence sequence, final Object key )
+	{
+		synchronized ( ENTRIES )
+		{
+			final Entry entry = ENTRIES.get( sequence );
+			return entry == null ? null : entry.imgs.get( key );
+		}
+	}
+
+	/**
+	 * Stores the image for the specified sequence and key, unless the
+	 * sequence changed since the specified generation.
+	 */
+	static void put( final Sequence sequence, final Object key, final Object img, final long generation )
+	{
+		synchronized ( ENTRIES )
+		{
+			final Entry entry = ENTRIES.get( sequence );
+			if ( entry != null && entry.generation == generation )
+				entry.imgs.put( key, img );
+		}
+	}
+
+	static void invalidate( final Sequence sequence )
+	{
+		synchronized ( ENTRIES )
+		{
+			final Entry entry = ENTRIES.get( sequence );
+			if ( entry == null )
+				return;
+			entry.generation++;
+			entry.imgs.clear();
+		}
+	}
+
+	private static final class Entry
+	{
+		private final Map< Object, Object > imgs = new HashMap<>();
+
+		private long generation;
+	}
+
+	private WrappedImgCache()
+	{}
+}
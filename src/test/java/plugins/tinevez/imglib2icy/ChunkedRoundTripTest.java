@@ -0,0 +1,140 @@
+package plugins.tinevez.imglib2icy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import plugins.tinevez.imglib2icy.ChunkedImgs.Compression;
+import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
+
+/**
+ * Exports images with {@link ChunkedExporter} and reads them back with
+ * {@link ChunkedImgs#open(Path)}. The image sizes are not multiples of the
+ * block size, so that the border blocks are truncated. Virtual sequences are
+ * exported from their source, which is not necessarily an {@link Img}.
+ */
+public class ChunkedRoundTripTest
+{
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRawUnsignedShort() throws IOException
+	{
+		roundTrip( unsignedShorts(), Compression.RAW );
+	}
+
+	@Test
+	public void testDeflateUnsignedShort() throws IOException
+	{
+		roundTrip( unsignedShorts(), Compression.DEFLATE );
+	}
+
+	@Test
+	public void testRawFloat() throws IOException
+	{
+		roundTrip( floats(), Compression.RAW );
+	}
+
+	@Test
+	public void testDeflateFloat() throws IOException
+	{
+		roundTrip( floats(), Compression.DEFLATE );
+	}
+
+	@Test
+	public void testVirtualSequenceOverInterval() throws IOException
+	{
+		final RandomAccessibleInterval< UnsignedShortType > view = Views.interval( unsignedShorts(), new long[] { 1, 2, 0 }, new long[] { 8, 6, 2 } );
+		final VirtualSequence sequence = new VirtualSequence( view, DimensionArrangement.XYZ );
+		final Path dir = folder.newFolder().toPath().resolve( "chunked" );
+		final ChunkedExporter< UnsignedShortType > exporter = new ChunkedExporter<>( sequence, dir );
+		exporter.setBlockSize( 4, 4, 2 );
+		exporter.export();
+		assertSameValues( Views.zeroMin( view ), dir );
+	}
+
+	@Test
+	public void testVirtualSequenceOverConvertedView() throws IOException
+	{
+		final RandomAccessibleInterval< FloatType > view = Converters.convert( ( RandomAccessibleInterval< UnsignedShortType > ) unsignedShorts(), new RealFloatConverter< UnsignedShortType >(), new FloatType() );
+		final VirtualSequence sequence = new VirtualSequence( view, DimensionArrangement.XYZ );
+		final Path dir = folder.newFolder().toPath().resolve( "chunked" );
+		final ChunkedExporter< FloatType > exporter = new ChunkedExporter<>( sequence, dir );
+		exporter.setBlockSize( 4, 4, 2 );
+		exporter.setCompression( Compression.DEFLATE );
+		exporter.export();
+		assertSameValues( view, dir );
+	}
+
+	private < T extends NativeType< T > & RealType< T > > void roundTrip( final Img< T > source, final Compression compression ) throws IOException
+	{
+		final Path dir = folder.newFolder().toPath().resolve( "chunked" );
+		final ChunkedExporter< T > exporter = new ChunkedExporter<>( source, DimensionArrangement.XYZ, dir );
+		exporter.setBlockSize( 4, 4, 2 );
+		exporter.setCompression( compression );
+		exporter.export();
+		assertSameValues( source, dir );
+	}
+
+	/**
+	 * Checks that the image stored in the specified directory has the
+	 * dimensions, type and values of the specified zero-min source.
+	 */
+	private static < T extends NativeType< T > & RealType< T > > void assertSameValues( final RandomAccessibleInterval< T > source, final Path dir ) throws IOException
+	{
+		final Img< T > opened = ChunkedImgs.open( dir );
+		assertArrayEquals( Intervals.dimensionsAsLongArray( source ), Intervals.dimensionsAsLongArray( opened ) );
+		assertEquals( source.getType().getClass(), opened.firstElement().getClass() );
+
+		final Cursor< T > cursor = Views.iterable( source ).localizingCursor();
+		final RandomAccess< T > ra = opened.randomAccess();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			ra.setPosition( cursor );
+			assertEquals( "At " + cursor, cursor.get().getRealDouble(), ra.get().getRealDouble(), 0. );
+		}
+	}
+
+	private static ArrayImg< UnsignedShortType, ShortArray > unsignedShorts()
+	{
+		final ArrayImg< UnsignedShortType, ShortArray > img = ArrayImgs.unsignedShorts( 10, 7, 3 );
+		int i = 0;
+		for ( final UnsignedShortType p : img )
+			p.set( ( i++ * 37 ) & 0xffff );
+		return img;
+	}
+
+	private static ArrayImg< FloatType, FloatArray > floats()
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( 10, 7, 3 );
+		int i = 0;
+		for ( final FloatType p : img )
+			p.set( ( float ) Math.sin( i++ ) * 1000f );
+		return img;
+	}
+}
@@ -0,0 +1,146 @@
+package plugins.tinevez.imglib2icy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.converter.RealUnsignedByteConverter;
+import net.imglib2.converter.RealUnsignedShortConverter;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Compares the bulk conversion kernels with the per-pixel ImgLib2
+ * converters they replace.
+ */
+public class ConversionKernelsTest
+{
+
+	private static final int LENGTH = 10000;
+
+	private static final double MIN = -20.;
+
+	private static final double MAX = 300.;
+
+	/**
+	 * Values spanning the display range and beyond, to exercise clamping.
+	 */
+	private static float[] randomFloats()
+	{
+		final Random random = new Random( 1l );
+		final float[] values = new float[ LENGTH ];
+		for ( int i = 0; i < LENGTH; i++ )
+			values[ i ] = ( float ) ( MIN - 50. + random.nextDouble() * ( MAX - MIN + 100. ) );
+		return values;
+	}
+
+	@Test
+	public void testFloatToUnsignedByte()
+	{
+		final float[] src = randomFloats();
+		final byte[] dst = new byte[ LENGTH ];
+		ConversionKernels.floatToUnsignedByte( MIN, MAX ).convert( src, 0, dst, 0, LENGTH );
+
+		final RealUnsignedByteConverter< FloatType > converter = new RealUnsignedByteConverter<>( MIN, MAX );
+		final FloatType in = new FloatType();
+		final UnsignedByteType out = new UnsignedByteType();
+		for ( int i = 0; i < LENGTH; i++ )
+		{
+			in.set( src[ i ] );
+			converter.convert( in, out );
+			// Float instead of double arithmetic: off by one at most at rounding boundaries.
+			assertTrue( "At " + i + ": " + src[ i ], Math.abs( out.get() - ( dst[ i ] & 0xff ) ) <= 1 );
+		}
+	}
+
+	@Test
+	public void testFloatToUnsignedShort()
+	{
+		final float[] src = randomFloats();
+		final short[] dst = new short[ LENGTH ];
+		ConversionKernels.floatToUnsignedShort( MIN, MAX ).convert( src, 0, dst, 0, LENGTH );
+
+		final RealUnsignedShortConverter< FloatType > converter = new RealUnsignedShortConverter<>( MIN, MAX );
+		final FloatType in = new FloatType();
+		final UnsignedShortType out = new UnsignedShortType();
+		for ( int i = 0; i < LENGTH; i++ )
+		{
+			in.set( src[ i ] );
+			converter.convert( in, out );
+			assertTrue( "At " + i + ": " + src[ i ], Math.abs( out.get() - ( dst[ i ] & 0xffff ) ) <= 1 );
+		}
+	}
+
+	@Test
+	public void testOffsets()
+	{
+		final float[] src = randomFloats();
+		final byte[] whole = new byte[ LENGTH ];
+		ConversionKernels.floatToUnsignedByte( MIN, MAX ).convert( src, 0, whole, 0, LENGTH );
+
+		final byte[] part = new byte[ LENGTH ];
+		ConversionKernels.floatToUnsignedByte( MIN, MAX ).convert( src, 100, part, 200, 1000 );
+		for ( int i = 0; i < 1000; i++ )
+			assertEquals( whole[ 100 + i ], part[ 200 + i ] );
+	}
+
+	@Test
+	public void testARGBRoundTrip()
+	{
+		final Random random = new Random( 2l );
+		final int[] argb = new int[ LENGTH ];
+		for ( int i = 0; i < LENGTH; i++ )
+			argb[ i ] = random.nextInt();
+
+		final byte[] a = new byte[ LENGTH ];
+		final byte[] r = new byte[ LENGTH ];
+		final byte[] g = new byte[ LENGTH ];
+		final byte[] b = new byte[ LENGTH ];
+		ConversionKernels.argbToUnsignedByte( 24 ).convert( argb, 0, a, 0, LENGTH );
+		ConversionKernels.argbToUnsignedByte( 16 ).convert( argb, 0, r, 0, LENGTH );
+		ConversionKernels.argbToUnsignedByte( 8 ).convert( argb, 0, g, 0, LENGTH );
+		ConversionKernels.argbToUnsignedByte( 0 ).convert( argb, 0, b, 0, LENGTH );
+		for ( int i = 0; i < LENGTH; i++ )
+		{
+			assertEquals( ARGBType.alpha( argb[ i ] ), a[ i ] & 0xff );
+			assertEquals( ARGBType.red( argb[ i ] ), r[ i ] & 0xff );
+			assertEquals( ARGBType.green( argb[ i ] ), g[ i ] & 0xff );
+			assertEquals( ARGBType.blue( argb[ i ] ), b[ i ] & 0xff );
+		}
+
+		final int[] packed = new int[ LENGTH ];
+		ConversionKernels.unsignedBytesToARGB( r, g, b, a, packed, LENGTH );
+		assertArrayEquals( argb, packed );
+
+		ConversionKernels.unsignedBytesToARGB( r, g, b, null, packed, LENGTH );
+		for ( int i = 0; i < LENGTH; i++ )
+			assertEquals( ARGBType.rgba( r[ i ] & 0xff, g[ i ] & 0xff, b[ i ] & 0xff, 255 ), packed[ i ] );
+	}
+
+	@Test
+	public void testBufferCopy()
+	{
+		final short[] values = new short[ LENGTH ];
+		for ( int i = 0; i < LENGTH; i++ )
+			values[ i ] = ( short ) ( i * 7 );
+
+		for ( final ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN } )
+		{
+			final ByteBuffer buffer = ByteBuffer.allocate( 2 * LENGTH ).order( order );
+			buffer.asShortBuffer().put( values );
+
+			final short[] copy = new short[ LENGTH ];
+			ConversionKernels.BUFFER_COPY.convert( buffer, 0, copy, 0, LENGTH );
+			assertArrayEquals( values, copy );
+			assertEquals( 0, buffer.position() );
+		}
+	}
+}
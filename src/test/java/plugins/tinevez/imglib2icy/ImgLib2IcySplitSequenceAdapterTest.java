@@ -0,0 +1,69 @@
+package plugins.tinevez.imglib2icy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import icy.sequence.Sequence;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
+
+public class ImgLib2IcySplitSequenceAdapterTest
+{
+
+	private static ArrayImg< UnsignedShortType, ShortArray > source()
+	{
+		final ArrayImg< UnsignedShortType, ShortArray > img = ArrayImgs.unsignedShorts( 6, 5, 2, 4 );
+		int i = 0;
+		for ( final UnsignedShortType p : img )
+			p.set( i++ );
+		return img;
+	}
+
+	@Test
+	public void testSplitVirtualSequenceOverView()
+	{
+		final ArrayImg< UnsignedShortType, ShortArray > img = source();
+		// Not an Img, and not zero-min.
+		final RandomAccessibleInterval< UnsignedShortType > view = Views.interval( img, new long[] { 1, 1, 0, 1 }, new long[] { 4, 3, 1, 3 } );
+		final VirtualSequence sequence = new VirtualSequence( view, DimensionArrangement.XYCT );
+
+		final List< RandomAccessibleInterval< UnsignedShortType > > views = ImgLib2IcySplitSequenceAdapter.split( sequence, true, false, true );
+		assertEquals( 2 * 3, views.size() );
+		// C varies fastest: index 3 is C=1, T=1.
+		final RandomAccessibleInterval< UnsignedShortType > slice = views.get( 3 );
+		assertEquals( 2, slice.numDimensions() );
+		assertEquals( img.getAt( 1, 1, 1, 2 ).get(), slice.getAt( 0, 0 ).get() );
+	}
+
+	@Test
+	public void testSplitSequenceOfVirtualSequenceIsVirtual()
+	{
+		final ArrayImg< UnsignedShortType, ShortArray > img = source();
+		final VirtualSequence sequence = new VirtualSequence( img, DimensionArrangement.XYCT );
+		sequence.getPrefetcher().setDepth( 0 );
+		for ( int t = 0; t < 4; t++ )
+			sequence.getPrefetcher().await( t, 0 );
+		final long cached = sequence.getCache().getBytes();
+
+		final List< Sequence > outputs = ImgLib2IcySplitSequenceAdapter.splitSequence( sequence, false, false, true );
+		assertEquals( 4, outputs.size() );
+		final Sequence output = outputs.get( 2 );
+		assertTrue( output instanceof VirtualSequence );
+		assertEquals( 2, output.getSizeC() );
+		assertEquals( 1, output.getSizeT() );
+		// The outputs project their own planes: nothing more is loaded from the split sequence.
+		assertEquals( cached, sequence.getCache().getBytes() );
+
+		final short[] plane = ( short[] ) output.getImage( 0, 0 ).getDataXY( 1 );
+		assertEquals( img.getAt( 3, 4, 1, 2 ).get(), plane[ 3 + 4 * 6 ] & 0xffff );
+	}
+}
@@ -0,0 +1,50 @@
+package plugins.tinevez.imglib2icy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+public class MappedImgsTest
+{
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testPlanesAreSlicesOfTheFile() throws IOException
+	{
+		final Path file = folder.getRoot().toPath().resolve( "img.raw" );
+		final PlanarImg< UnsignedShortType, ? > created = MappedImgs.create( file, new UnsignedShortType(), ByteOrder.LITTLE_ENDIAN, 5, 4, 3 );
+		int i = 0;
+		for ( final UnsignedShortType p : created )
+			p.set( i++ );
+		assertEquals( 2 * 5 * 4 * 3, Files.size( file ) );
+
+		final PlanarImg< UnsignedShortType, ? > opened = MappedImgs.open( file, new UnsignedShortType(), ByteOrder.LITTLE_ENDIAN, 5, 4, 3 );
+		assertEquals( 3, opened.numSlices() );
+		i = 0;
+		for ( final UnsignedShortType p : opened )
+			assertEquals( i++, p.get() );
+		// Each plane starts at its own offset in the file.
+		assertEquals( 2 * 5 * 4 + 3 + 5, opened.getAt( 3, 1, 2 ).get() );
+	}
+
+	@Test( expected = ReadOnlyBufferException.class )
+	public void testOpenedImagesAreReadOnly() throws IOException
+	{
+		final Path file = folder.getRoot().toPath().resolve( "img.raw" );
+		MappedImgs.create( file, new UnsignedShortType(), ByteOrder.BIG_ENDIAN, 5, 4, 2 );
+		MappedImgs.open( file, new UnsignedShortType(), ByteOrder.BIG_ENDIAN, 5, 4, 2 ).firstElement().set( 1 );
+	}
+}
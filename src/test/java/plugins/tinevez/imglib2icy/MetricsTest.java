@@ -0,0 +1,71 @@
+package plugins.tinevez.imglib2icy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import icy.image.IcyBufferedImage;
+import net.imglib2.img.array.ArrayImgs;
+import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
+
+public class MetricsTest
+{
+
+	private final Metrics metrics = Metrics.get();
+
+	private boolean enabled;
+
+	@Before
+	public void setUp()
+	{
+		enabled = metrics.isEnabled();
+		metrics.setEnabled( true );
+		metrics.reset();
+	}
+
+	@After
+	public void tearDown()
+	{
+		metrics.reset();
+		metrics.setEnabled( enabled );
+	}
+
+	@Test
+	public void testPercentileSkipsEmptyBuckets()
+	{
+		assertEquals( 0, metrics.getProjectionTimePerPlanePercentileMicros( 50. ) );
+
+		// 10 us per plane, in the bucket [8, 16).
+		Metrics.planesProjected( 1, 0, 10000l );
+		assertEquals( 16, metrics.getProjectionTimePerPlanePercentileMicros( 0. ) );
+		assertEquals( 16, metrics.getProjectionTimePerPlanePercentileMicros( 100. ) );
+
+		// 100 us per plane, in the bucket [64, 128).
+		Metrics.planesProjected( 3, 0, 300000l );
+		assertEquals( 16, metrics.getProjectionTimePerPlanePercentileMicros( 25. ) );
+		assertEquals( 128, metrics.getProjectionTimePerPlanePercentileMicros( 50. ) );
+	}
+
+	@Test
+	public void testKeptImagesAreNotCacheLookups()
+	{
+		final VirtualSequence sequence = new VirtualSequence( ArrayImgs.unsignedBytes( 4, 4, 2, 3 ), DimensionArrangement.XYCT );
+		try
+		{
+			final IcyBufferedImage img = sequence.getImage( 1, 0 );
+			final long lookups = metrics.getCacheHits() + metrics.getCacheMisses();
+
+			assertSame( img, sequence.getImage( 1, 0 ) );
+			assertEquals( 1, metrics.getKeptImageHits() );
+			assertEquals( lookups, metrics.getCacheHits() + metrics.getCacheMisses() );
+		}
+		finally
+		{
+			sequence.getPrefetcher().shutdown();
+			sequence.getCache().clear();
+		}
+	}
+}
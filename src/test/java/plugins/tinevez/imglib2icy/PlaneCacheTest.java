@@ -0,0 +1,171 @@
+package plugins.tinevez.imglib2icy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class PlaneCacheTest
+{
+
+	private final long globalBudget = PlaneCache.getGlobalBudget();
+
+	@After
+	public void restoreGlobalBudget()
+	{
+		PlaneCache.setGlobalBudget( globalBudget );
+	}
+
+	@Test
+	public void testBytesAreAccounted()
+	{
+		final PlaneCache cache = new PlaneCache( 1000 );
+		cache.put( 0, 0, 0, new byte[ 100 ] );
+		cache.put( 0, 0, 1, new short[ 100 ] );
+		cache.put( 0, 0, 2, new float[ 10 ] );
+		assertEquals( 100 + 200 + 40, cache.getBytes() );
+
+		// Replacing a plane only counts the difference.
+		cache.put( 0, 0, 0, new byte[ 50 ] );
+		assertEquals( 50 + 200 + 40, cache.getBytes() );
+
+		cache.remove( 0, 0, 1 );
+		assertEquals( 50 + 40, cache.getBytes() );
+		assertNull( cache.get( 0, 0, 1 ) );
+
+		cache.clear();
+		assertEquals( 0, cache.getBytes() );
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted()
+	{
+		final PlaneCache cache = new PlaneCache( 300 );
+		final byte[] a = new byte[ 100 ];
+		final byte[] b = new byte[ 100 ];
+		final byte[] c = new byte[ 100 ];
+		cache.put( 0, 0, 0, a );
+		cache.put( 1, 0, 0, b );
+		cache.put( 2, 0, 0, c );
+
+		// Touch a, so that b is the eldest.
+		assertSame( a, cache.get( 0, 0, 0 ) );
+		cache.put( 3, 0, 0, new byte[ 100 ] );
+
+		assertEquals( 300, cache.getBytes() );
+		assertSame( a, cache.get( 0, 0, 0 ) );
+		assertNull( cache.get( 1, 0, 0 ) );
+		assertSame( c, cache.get( 2, 0, 0 ) );
+		assertNotNull( cache.get( 3, 0, 0 ) );
+	}
+
+	@Test
+	public void testLowerBudgetEvicts()
+	{
+		final PlaneCache cache = new PlaneCache( 1000 );
+		for ( int t = 0; t < 10; t++ )
+			cache.put( t, 0, 0, new byte[ 100 ] );
+		assertEquals( 1000, cache.getBytes() );
+
+		cache.setBudget( 250 );
+		assertEquals( 200, cache.getBytes() );
+		assertNotNull( cache.get( 9, 0, 0 ) );
+		assertNotNull( cache.get( 8, 0, 0 ) );
+		assertNull( cache.get( 7, 0, 0 ) );
+	}
+
+	@Test
+	public void testPlanesLargerThanBudgetAreNotStored()
+	{
+		final PlaneCache cache = new PlaneCache( 100 );
+		cache.put( 0, 0, 0, new byte[ 101 ] );
+		assertNull( cache.get( 0, 0, 0 ) );
+		assertEquals( 0, cache.getBytes() );
+	}
+
+	@Test
+	public void testEvictionListenerSeesEvictedPlane()
+	{
+		final PlaneCache cache = new PlaneCache( 200 );
+		final List< Object > evicted = new ArrayList<>();
+		cache.setEvictionListener( new PlaneCache.EvictionListener()
+		{
+			@Override
+			public void evicting( final int t, final int z, final int c, final Object data )
+			{
+				assertEquals( 0, t );
+				evicted.add( data );
+			}
+		} );
+		final byte[] first = new byte[ 100 ];
+		cache.put( 0, 0, 0, first );
+		cache.put( 1, 0, 0, new byte[ 100 ] );
+		assertTrue( evicted.isEmpty() );
+
+		cache.put( 2, 0, 0, new byte[ 100 ] );
+		assertEquals( 1, evicted.size() );
+		assertSame( first, evicted.get( 0 ) );
+
+		// Removed planes are not notified.
+		cache.remove( 1, 0, 0 );
+		cache.clear();
+		assertEquals( 1, evicted.size() );
+	}
+
+	@Test
+	public void testConditionalRemove()
+	{
+		final PlaneCache cache = new PlaneCache( 1000 );
+		final byte[] plane = new byte[ 100 ];
+		cache.put( 0, 0, 0, plane );
+
+		assertFalse( cache.remove( 0, 0, 0, new byte[ 100 ] ) );
+		assertSame( plane, cache.get( 0, 0, 0 ) );
+
+		assertTrue( cache.remove( 0, 0, 0, plane ) );
+		assertNull( cache.get( 0, 0, 0 ) );
+		assertEquals( 0, cache.getBytes() );
+	}
+
+	@Test
+	public void testGlobalBudgetEvictsAcrossCaches()
+	{
+		final PlaneCache first = new PlaneCache( 1000 );
+		final PlaneCache second = new PlaneCache( 1000 );
+		// Also evicts the planes of the caches of other tests, which are older.
+		PlaneCache.setGlobalBudget( 300 );
+
+		first.put( 0, 0, 0, new byte[ 100 ] );
+		second.put( 0, 0, 0, new byte[ 100 ] );
+		first.put( 1, 0, 0, new byte[ 100 ] );
+		second.put( 1, 0, 0, new byte[ 100 ] );
+
+		// The eldest plane over both caches is the first one of the first cache.
+		assertEquals( 100, first.getBytes() );
+		assertEquals( 200, second.getBytes() );
+		assertNull( first.get( 0, 0, 0 ) );
+		assertNotNull( first.get( 1, 0, 0 ) );
+
+		first.clear();
+		second.clear();
+	}
+
+	@Test
+	public void testSizeOf()
+	{
+		assertEquals( 10, PlaneCache.sizeOf( new byte[ 10 ] ) );
+		assertEquals( 20, PlaneCache.sizeOf( new short[ 10 ] ) );
+		assertEquals( 40, PlaneCache.sizeOf( new int[ 10 ] ) );
+		assertEquals( 40, PlaneCache.sizeOf( new float[ 10 ] ) );
+		assertEquals( 80, PlaneCache.sizeOf( new long[ 10 ] ) );
+		assertEquals( 80, PlaneCache.sizeOf( new double[ 10 ] ) );
+	}
+}
@@ -0,0 +1,194 @@
+package plugins.tinevez.imglib2icy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import icy.image.IcyBufferedImage;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import plugins.tinevez.imglib2icy.VirtualSequence.DimensionArrangement;
+
+/**
+ * Write-back and cache behaviour of a {@link VirtualSequence}. The source is
+ * an {@link ArrayImg} with several planes, so its images go through the plane
+ * cache instead of using the source arrays.
+ */
+public class VirtualSequenceTest
+{
+
+	private static final int SIZE_X = 8;
+
+	private static final int SIZE_Y = 8;
+
+	private static final int SIZE_T = 3;
+
+	private static final long PLANE_BYTES = 2 * SIZE_X * SIZE_Y;
+
+	private ArrayImg< UnsignedShortType, ShortArray > source;
+
+	private VirtualSequence sequence;
+
+	@Before
+	public void setUp()
+	{
+		source = ArrayImgs.unsignedShorts( SIZE_X, SIZE_Y, SIZE_T );
+		int i = 0;
+		for ( final UnsignedShortType p : source )
+			p.set( i++ );
+
+		sequence = new VirtualSequence( source, DimensionArrangement.XYT );
+		// No planes loaded behind the back of the tests.
+		sequence.getPrefetcher().setDepth( 0 );
+		for ( int t = 0; t < SIZE_T; t++ )
+			sequence.getPrefetcher().await( t, 0 );
+		sequence.invalidate();
+	}
+
+	@After
+	public void tearDown()
+	{
+		sequence.getPrefetcher().shutdown();
+		sequence.getCache().clear();
+	}
+
+	@Test
+	public void testFlushWritesBack()
+	{
+		sequence.setWriteBack( true );
+		final IcyBufferedImage img = sequence.getImage( 1, 0 );
+		( ( short[] ) img.getDataXY( 0 ) )[ 3 + 2 * SIZE_X ] = 4242;
+		img.dataChanged();
+
+		sequence.flush();
+		assertEquals( 4242, valueAt( 3, 2, 1 ) );
+		// Other planes are untouched.
+		assertEquals( 3 + 2 * SIZE_X, valueAt( 3, 2, 0 ) );
+	}
+
+	@Test
+	public void testDisablingWriteBackFlushes()
+	{
+		sequence.setWriteBack( true );
+		final IcyBufferedImage img = sequence.getImage( 0, 0 );
+		( ( short[] ) img.getDataXY( 0 ) )[ 0 ] = 17;
+		img.dataChanged();
+
+		sequence.setWriteBack( false );
+		assertEquals( 17, valueAt( 0, 0, 0 ) );
+	}
+
+	@Test
+	public void testEvictedDirtyPlaneIsWrittenBack()
+	{
+		// Room for one plane only.
+		sequence.getCache().setBudget( PLANE_BYTES );
+		sequence.setWriteBack( true );
+
+		final IcyBufferedImage img = sequence.getImage( 0, 0 );
+		assertSame( img.getDataXY( 0 ), sequence.getCache().get( 0, 0, 0 ) );
+		( ( short[] ) img.getDataXY( 0 ) )[ 5 ] = 1234;
+		img.dataChanged();
+		assertEquals( 5, valueAt( 5, 0, 0 ) );
+
+		// Loading another plane evicts the dirty one.
+		sequence.getImage( 1, 0 );
+		assertNull( sequence.getCache().get( 0, 0, 0 ) );
+		assertEquals( 1234, valueAt( 5, 0, 0 ) );
+	}
+
+	@Test
+	public void testModifiedPlaneIsUncachedWithoutWriteBack()
+	{
+		final IcyBufferedImage img = sequence.getImage( 2, 0 );
+		final Object plane = img.getDataXY( 0 );
+		assertSame( plane, sequence.getCache().get( 2, 0, 0 ) );
+
+		( ( short[] ) plane )[ 0 ] = 99;
+		img.dataChanged();
+
+		assertNull( sequence.getCache().get( 2, 0, 0 ) );
+		assertEquals( 2 * SIZE_X * SIZE_Y, valueAt( 0, 0, 2 ) );
+		sequence.flush();
+		assertEquals( 2 * SIZE_X * SIZE_Y, valueAt( 0, 0, 2 ) );
+	}
+
+	@Test
+	public void testPrefetchDuringEditDoesNotHideIt() throws InterruptedException
+	{
+		// A source whose projection on a prefetch thread blocks once, until released.
+		final AtomicBoolean blockPrefetch = new AtomicBoolean( true );
+		final CountDownLatch entered = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final RandomAccessibleInterval< UnsignedShortType > view = Converters.convert( ( RandomAccessibleInterval< UnsignedShortType > ) source, new Converter< UnsignedShortType, UnsignedShortType >()
+		{
+			@Override
+			public void convert( final UnsignedShortType input, final UnsignedShortType output )
+			{
+				if ( Thread.currentThread().getName().startsWith( "VirtualSequence prefetcher" ) && blockPrefetch.compareAndSet( true, false ) )
+				{
+					entered.countDown();
+					try
+					{
+						release.await();
+					}
+					catch ( final InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+				output.set( input );
+			}
+		}, new UnsignedShortType() );
+
+		final VirtualSequence virtual = new VirtualSequence( view, DimensionArrangement.XYT );
+		try
+		{
+			virtual.getPrefetcher().setDepth( 0 );
+			for ( int t = 0; t < SIZE_T; t++ )
+				virtual.getPrefetcher().await( t, 0 );
+			virtual.setWriteBack( true );
+
+			// Edited, but not notified yet, and no longer kept nor cached.
+			final IcyBufferedImage img = virtual.getImage( 1, 0 );
+			( ( short[] ) img.getDataXY( 0 ) )[ 0 ] = 777;
+			virtual.invalidate();
+
+			// Requesting t = 2 after t = 1 prefetches t = 1 again, which blocks while projecting.
+			virtual.getPrefetcher().setDepth( 1 );
+			virtual.getImage( 2, 0 );
+			entered.await();
+			img.dataChanged();
+			release.countDown();
+
+			assertSame( img.getDataXY( 0 ), virtual.getImage( 1, 0 ).getDataXY( 0 ) );
+			assertSame( img.getDataXY( 0 ), virtual.getCache().get( 1, 0, 0 ) );
+		}
+		finally
+		{
+			release.countDown();
+			virtual.getPrefetcher().shutdown();
+			virtual.getCache().clear();
+		}
+	}
+
+	private int valueAt( final int x, final int y, final int t )
+	{
+		final RandomAccess< UnsignedShortType > ra = source.randomAccess();
+		ra.setPosition( new int[] { x, y, t } );
+		return ra.get().get();
+	}
+}